@@ -0,0 +1,101 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Compara los resultados de JMH en CSV (-rf csv -rff <file.csv>) con los de una ejecución anterior y sale con
+ * código 1 si algún benchmark ha perdido más de tolerance % de throughput o, con -prof gc, reserva más de
+ * tolerance % de bytes por operación.
+ */
+public class BenchmarkBaseline {
+
+    public static void main(String[] args) throws IOException {
+        String usage = "BenchmarkBaseline <results.csv> <baseline.csv> [-tolerance <pct>]";
+
+        if (args.length < 2) {
+            System.err.println("Uso incorrecto: " + usage);
+            System.exit(1);
+        }
+        String resultsFile = args[0];
+        String baselineFile = args[1];
+        double tolerance = 10.0;
+
+        for (int i = 2; i < args.length; i++) {
+            try {
+                switch (args[i]) {
+                    case "-tolerance":
+                        tolerance = Double.parseDouble(args[++i]);
+                        break;
+                    default:
+                        System.err.println("Uso incorrecto: " + usage);
+                        System.exit(1);
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.err.println("Uso incorrecto: " + usage);
+                System.exit(1);
+            }
+        }
+
+        Map<String, double[]> results = readResults(resultsFile);
+        Map<String, double[]> baseline = readResults(baselineFile);
+
+        boolean ok = true;
+        System.out.println("Comparación con " + baselineFile + " (tolerancia " + tolerance + "%):");
+        for (Map.Entry<String, double[]> entry : results.entrySet()) {
+            double[] previous = baseline.get(entry.getKey());
+            if (previous == null) {
+                continue;
+            }
+            double score = entry.getValue()[0];
+            // En throughput es peor un score menor; en tiempo medio y en bytes por operación, uno mayor
+            boolean higherIsBetter = entry.getValue()[1] > 0;
+            double change = 100.0 * (score - previous[0]) / previous[0];
+            boolean regression = higherIsBetter ? change < -tolerance : change > tolerance;
+            ok &= !regression;
+            System.out.printf(Locale.ROOT, "%-64s %16.3f -> %16.3f (%+.1f%%)%s%n", entry.getKey(), previous[0], score,
+                    change, regression ? "  REGRESIÓN" : "");
+        }
+
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Benchmark (con sus parámetros) -> {score, 1 si un score mayor es mejor o 0 si no}. Sólo se leen las métricas
+     * principales y gc.alloc.rate.norm.
+     */
+    private static Map<String, double[]> readResults(String file) throws IOException {
+        Map<String, double[]> results = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String[] header = splitLine(reader.readLine());
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = splitLine(line);
+                String benchmark = parts[0];
+                boolean allocation = benchmark.endsWith(":gc.alloc.rate.norm");
+                if (benchmark.contains(":") && !allocation) {
+                    continue;
+                }
+                StringBuilder key = new StringBuilder(benchmark);
+                for (int i = 7; i < parts.length && i < header.length; i++) {
+                    key.append(' ').append(header[i].replace("Param: ", "")).append('=').append(parts[i]);
+                }
+                boolean higherIsBetter = !allocation && parts[1].equals("thrpt");
+                results.put(key.toString(), new double[]{Double.parseDouble(parts[4]), higherIsBetter ? 1 : 0});
+            }
+        }
+        return results;
+    }
+
+    private static String[] splitLine(String line) {
+        String[] parts = line.split(",", -1);
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = parts[i].replace("\"", "");
+        }
+        return parts;
+    }
+}
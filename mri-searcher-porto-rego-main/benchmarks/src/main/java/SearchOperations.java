@@ -0,0 +1,127 @@
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Rutas críticas de búsqueda y evaluación sobre un índice en memoria construido a partir de un corpus sintético
+ * generado con semilla (SyntheticCorpus): evaluación de queries con BM25 y JM, construcción de QueryResults, cálculo
+ * de métricas e indexación. Cada operación recorre las 50 queries (o indexa el corpus entero) una vez.
+ *
+ * Las clases del buscador están en el paquete por defecto y JMH exige que los benchmarks estén en un paquete con
+ * nombre, así que benchmarks.SearchBenchmark crea esta clase por reflexión en el @Setup y durante la medida sólo
+ * llama a Callable.call.
+ */
+public class SearchOperations implements Closeable {
+
+    public static final int CUT = 10;
+    public static final int TOP_DOCS = 100;
+
+    private final Path corpusDir;
+    private final String docsPath;
+    private final DirectoryReader reader;
+    private final Map<Integer, Query> queries;
+    private final MetricEngine engine;
+    // Hits precalculados para medir por separado la construcción de resultados y las métricas
+    private final Map<Integer, ScoreDoc[]> hits = new TreeMap<>();
+    private final Map<Integer, List<String>> rankings = new TreeMap<>();
+
+    public SearchOperations(int numDocs, long seed) throws IOException {
+        this.corpusDir = Files.createTempDirectory("trec-covid-synthetic");
+        new SyntheticCorpus(seed).write(corpusDir, numDocs);
+        this.docsPath = corpusDir.toString();
+
+        Directory directory = new ByteBuffersDirectory();
+        buildIndex(directory, docsPath);
+        this.reader = DirectoryReader.open(directory);
+        this.queries = QueryUtils.getQueries(1, 50, new QueryParser("text", new StandardAnalyzer()));
+        this.engine = MetricEngine.withDefaults(CUT, "p@5,p@100,ndcg@20");
+
+        IndexSearcher searcher = searcher(new BM25Similarity());
+        for (Map.Entry<Integer, Query> entry : queries.entrySet()) {
+            ScoreDoc[] scoreDocs = searcher.search(entry.getValue(), TOP_DOCS).scoreDocs;
+            hits.put(entry.getKey(), scoreDocs);
+            rankings.put(entry.getKey(), new QueryResults(entry.getKey(), "", scoreDocs, CUT, searcher, engine).getCorpusIds());
+        }
+    }
+
+    /**
+     * Operación a medir: evaluateQueries.bm25, evaluateQueries.jm, QueryResults.new, MetricEngine.evaluate
+     * o IndexTrecCovid.indexDocuments.
+     */
+    public Callable<Object> get(String name) {
+        switch (name) {
+            case "evaluateQueries.bm25": {
+                IndexSearcher bm25Searcher = searcher(new BM25Similarity(1.2f, 0.75f));
+                return () -> QueryUtils.evaluateQueries(bm25Searcher, queries, CUT, TOP_DOCS, engine);
+            }
+            case "evaluateQueries.jm": {
+                IndexSearcher jmSearcher = searcher(new LMJelinekMercerSimilarity(0.1f));
+                return () -> QueryUtils.evaluateQueries(jmSearcher, queries, CUT, TOP_DOCS, engine);
+            }
+            case "QueryResults.new": {
+                IndexSearcher searcher = searcher(new BM25Similarity());
+                return () -> {
+                    List<QueryResults> built = new ArrayList<>(hits.size());
+                    for (Map.Entry<Integer, ScoreDoc[]> entry : hits.entrySet()) {
+                        built.add(new QueryResults(entry.getKey(), "", entry.getValue(), CUT, searcher, engine));
+                    }
+                    return built;
+                };
+            }
+            case "MetricEngine.evaluate":
+                return () -> {
+                    List<Map<String, Float>> values = new ArrayList<>(rankings.size());
+                    for (Map.Entry<Integer, List<String>> entry : rankings.entrySet()) {
+                        values.add(engine.evaluate(entry.getValue(), QueryResults.getJudgements(entry.getKey())));
+                    }
+                    return values;
+                };
+            case "IndexTrecCovid.indexDocuments":
+                return () -> {
+                    Directory target = new ByteBuffersDirectory();
+                    buildIndex(target, docsPath);
+                    return target;
+                };
+            default:
+                throw new IllegalArgumentException("Operación desconocida: " + name);
+        }
+    }
+
+    private IndexSearcher searcher(Similarity similarity) {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(similarity);
+        return searcher;
+    }
+
+    private static void buildIndex(Directory directory, String docsPath) throws IOException {
+        IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+        iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        try (IndexWriter writer = new IndexWriter(directory, iwc)) {
+            IndexTrecCovid.indexDocuments(writer, docsPath);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+        Files.deleteIfExists(corpusDir.resolve("corpus.jsonl"));
+        Files.deleteIfExists(corpusDir);
+    }
+}
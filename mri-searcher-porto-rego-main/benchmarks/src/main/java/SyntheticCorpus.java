@@ -0,0 +1,117 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Generador con semilla de un corpus con el formato de TREC-COVID (corpus.jsonl). Los términos siguen una
+ * distribución de Zipf, los primeros documentos usan los ids juzgados en test.tsv y los relevantes contienen
+ * los términos de su query, de forma que búsquedas y métricas se comportan como con la colección real.
+ */
+public class SyntheticCorpus {
+
+    private static final int VOCABULARY_SIZE = 50000;
+    private static final double ZIPF_EXPONENT = 1.07;
+
+    private final Random random;
+    private final String[] vocabulary;
+    private final double[] cumulative;
+
+    public SyntheticCorpus(long seed) {
+        this.random = new Random(seed);
+        this.vocabulary = new String[VOCABULARY_SIZE];
+        this.cumulative = new double[VOCABULARY_SIZE];
+
+        double sum = 0;
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            vocabulary[i] = word(i);
+            sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    // Palabras en base 26 ("a", "b", ..., "ba", ...) para que el StandardAnalyzer las mantenga como un único token
+    private static String word(int n) {
+        StringBuilder sb = new StringBuilder();
+        do {
+            sb.append((char) ('a' + n % 26));
+            n /= 26;
+        } while (n > 0);
+        return sb.reverse().toString();
+    }
+
+    private String nextTerm() {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return vocabulary[Math.min(index, VOCABULARY_SIZE - 1)];
+    }
+
+    private String nextText(int numTerms) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < numTerms; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(nextTerm());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Escribe numDocs documentos en dir/corpus.jsonl.
+     */
+    public void write(Path dir, int numDocs) throws IOException {
+        // id de corpus -> queries para las que es relevante (con su grado)
+        Map<String, List<int[]>> judged = new TreeMap<>();
+        Map<Integer, String> queryTexts = QueryUtils.getQueryTexts(1, 50);
+        for (int queryId : queryTexts.keySet()) {
+            for (Map.Entry<String, Integer> judgement : QueryResults.getJudgements(queryId).entrySet()) {
+                judged.computeIfAbsent(judgement.getKey(), k -> new ArrayList<>())
+                        .add(new int[]{queryId, judgement.getValue()});
+            }
+        }
+        Iterator<Map.Entry<String, List<int[]>>> judgedIds = judged.entrySet().iterator();
+
+        ObjectMapper mapper = new ObjectMapper();
+        Files.createDirectories(dir);
+        try (BufferedWriter writer = Files.newBufferedWriter(dir.resolve("corpus.jsonl"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < numDocs; i++) {
+                String id;
+                StringBuilder text = new StringBuilder(nextText(150 + random.nextInt(100)));
+                if (judgedIds.hasNext()) {
+                    Map.Entry<String, List<int[]>> entry = judgedIds.next();
+                    id = entry.getKey();
+                    for (int[] judgement : entry.getValue()) {
+                        // La mitad de los relevantes contienen los términos de su query, repetidos según el grado
+                        if (judgement[1] > 0 && random.nextBoolean()) {
+                            for (int g = 0; g < judgement[1]; g++) {
+                                text.append(' ').append(queryTexts.get(judgement[0]));
+                            }
+                        }
+                    }
+                } else {
+                    id = String.format("syn%06d", i);
+                }
+
+                ObjectNode doc = mapper.createObjectNode();
+                doc.put("_id", id);
+                doc.put("title", nextText(8 + random.nextInt(5)));
+                doc.put("text", text.toString());
+                ObjectNode metadata = doc.putObject("metadata");
+                metadata.put("url", "https://example.org/" + id);
+                metadata.put("pubmed_id", String.valueOf(10000000 + i));
+
+                writer.write(mapper.writeValueAsString(doc));
+                writer.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.KnnFloatVectorField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.VectorUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Búsqueda exacta con FlatVectorScorer frente a KnnFloatVectorQuery (HNSW) sobre vectores aleatorios normalizados
+ * generados con semilla, con producto escalar. Cada operación busca el top-k de las 50 queries. Al crearse informa
+ * del recall@k del grafo HNSW frente a la búsqueda exacta, explorando k y 10k candidatos.
+ *
+ * Se crea por reflexión desde benchmarks.VectorSearchBenchmark, igual que SearchOperations.
+ */
+public class VectorOperations implements Closeable {
+
+    private static final int NUM_QUERIES = 50;
+
+    private final Path dir;
+    private final Path vectorsFile;
+    private final int k;
+    private final List<float[]> queries = new ArrayList<>();
+    private final DirectoryReader reader;
+    private final Embeddings embeddings;
+    private final VectorOps best = VectorOps.create();
+    private final ForkJoinPool sequential = new ForkJoinPool(1);
+
+    public VectorOperations(int numDocs, int dimension, long seed, int k) throws IOException {
+        this.k = k;
+        Random random = new Random(seed);
+        float[][] vectors = new float[numDocs][];
+        this.dir = Files.createTempDirectory("trec-covid-vectors");
+        this.vectorsFile = dir.resolve("vectors.fvecs");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(vectorsFile), 1 << 16);
+             BufferedWriter ids = Files.newBufferedWriter(Embeddings.idsPath(vectorsFile), StandardCharsets.UTF_8)) {
+            ByteBuffer row = ByteBuffer.allocate(Integer.BYTES + dimension * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < numDocs; i++) {
+                vectors[i] = randomUnitVector(random, dimension);
+                row.clear();
+                row.putInt(dimension);
+                for (float v : vectors[i]) {
+                    row.putFloat(v);
+                }
+                out.write(row.array());
+                ids.write("doc" + i + "\n");
+            }
+        }
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            queries.add(randomUnitVector(random, dimension));
+        }
+
+        // Un único segmento con los documentos en el orden de las filas, para que docID == fila
+        Directory directory = new ByteBuffersDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE)
+                .setMergePolicy(new LogDocMergePolicy());
+        try (IndexWriter writer = new IndexWriter(directory, iwc)) {
+            for (float[] vector : vectors) {
+                Document doc = new Document();
+                doc.add(new KnnFloatVectorField(IndexTrecCovid.VECTOR_FIELD, vector, VectorSimilarityFunction.DOT_PRODUCT));
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+        this.reader = DirectoryReader.open(directory);
+        this.embeddings = Embeddings.load(vectorsFile.toString());
+
+        printRecall(numDocs, dimension);
+    }
+
+    /**
+     * Operación a medir: FlatVectorScorer.scalar, FlatVectorScorer.vectorized (con la Vector API si la JVM la tiene;
+     * si no, igual que scalar), FlatVectorScorer.parallel (vectorized en el ForkJoinPool común) o KnnFloatVectorQuery.
+     */
+    public Callable<Object> get(String name) {
+        switch (name) {
+            case "FlatVectorScorer.scalar":
+                return searchAll(scorer(new VectorOps.Scalar(), sequential));
+            case "FlatVectorScorer.vectorized":
+                return searchAll(scorer(best, sequential));
+            case "FlatVectorScorer.parallel":
+                return searchAll(scorer(best, ForkJoinPool.commonPool()));
+            case "KnnFloatVectorQuery": {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                return () -> {
+                    List<TopDocs> all = new ArrayList<>(queries.size());
+                    for (float[] query : queries) {
+                        all.add(searcher.search(new KnnFloatVectorQuery(IndexTrecCovid.VECTOR_FIELD, query, k), k));
+                    }
+                    return all;
+                };
+            }
+            default:
+                throw new IllegalArgumentException("Operación desconocida: " + name);
+        }
+    }
+
+    private FlatVectorScorer scorer(VectorOps ops, ForkJoinPool pool) {
+        return new FlatVectorScorer(embeddings, VectorSimilarityFunction.DOT_PRODUCT, ops, pool);
+    }
+
+    private Callable<Object> searchAll(FlatVectorScorer scorer) {
+        return () -> {
+            List<ScoreDoc[]> all = new ArrayList<>(queries.size());
+            for (float[] query : queries) {
+                all.add(scorer.search(query, k));
+            }
+            return all;
+        };
+    }
+
+    private void printRecall(int numDocs, int dimension) throws IOException {
+        FlatVectorScorer exactScorer = scorer(best, sequential);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        for (int candidates : new int[]{k, 10 * k}) {
+            double recall = 0;
+            for (float[] query : queries) {
+                Set<Integer> exact = new HashSet<>();
+                for (ScoreDoc hit : exactScorer.search(query, k)) {
+                    exact.add(hit.doc);
+                }
+                int found = 0;
+                Query knn = new KnnFloatVectorQuery(IndexTrecCovid.VECTOR_FIELD, query, candidates);
+                for (ScoreDoc hit : searcher.search(knn, k).scoreDocs) {
+                    if (exact.contains(hit.doc)) {
+                        found++;
+                    }
+                }
+                recall += (double) found / k;
+            }
+            System.out.printf(Locale.ROOT, "# Recall@%d de HNSW (%d candidatos) frente a la búsqueda exacta (%d docs, dim %d, %s): %.4f%n",
+                    k, candidates, numDocs, dimension, best.name(), recall / queries.size());
+        }
+    }
+
+    private static float[] randomUnitVector(Random random, int dimension) {
+        float[] vector = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return VectorUtil.l2normalize(vector);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sequential.shutdown();
+        reader.close();
+        Files.deleteIfExists(vectorsFile);
+        Files.deleteIfExists(Embeddings.idsPath(vectorsFile));
+        Files.deleteIfExists(dir);
+    }
+}
@@ -0,0 +1,55 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks JMH de las rutas críticas de búsqueda, evaluación e indexación (ver SearchOperations). Una operación
+ * es una pasada por las 50 queries (o la indexación del corpus entero), así que las queries/s o docs/s son el score
+ * multiplicado por 50 o por docs. Con -prof gc, gc.alloc.rate.norm da los bytes reservados por operación.
+ *
+ * Se ejecuta desde el directorio de mri-searcher, que es donde están las queries y los juicios:
+ * java -jar benchmarks/target/benchmarks.jar SearchBenchmark -prof gc -rf csv -rff benchmark.csv
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class SearchBenchmark {
+
+    @Param({"20000"})
+    public int docs;
+
+    @Param({"42"})
+    public long seed;
+
+    @Param({"evaluateQueries.bm25", "evaluateQueries.jm", "QueryResults.new", "MetricEngine.evaluate",
+            "IndexTrecCovid.indexDocuments"})
+    public String operation;
+
+    private Closeable operations;
+    private Callable<Object> op;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        Class<?> type = Class.forName("SearchOperations");
+        operations = (Closeable) type.getConstructor(int.class, long.class).newInstance(docs, seed);
+        op = (Callable<Object>) type.getMethod("get", String.class).invoke(operations, operation);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        operations.close();
+    }
+
+    @Benchmark
+    public Object run() throws Exception {
+        return op.call();
+    }
+}
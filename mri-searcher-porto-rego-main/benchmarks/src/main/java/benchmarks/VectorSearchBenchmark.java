@@ -0,0 +1,60 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks JMH de la búsqueda exacta de FlatVectorScorer frente a KnnFloatVectorQuery (ver VectorOperations). Una
+ * operación es el top-k de 50 queries, así que las queries/s son el score multiplicado por 50. El recall de HNSW
+ * frente a la búsqueda exacta se imprime en el @Setup de cada combinación de parámetros.
+ *
+ * java -jar benchmarks/target/benchmarks.jar VectorSearchBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class VectorSearchBenchmark {
+
+    @Param({"20000"})
+    public int docs;
+
+    @Param({"128"})
+    public int dim;
+
+    @Param({"42"})
+    public long seed;
+
+    @Param({"10"})
+    public int k;
+
+    @Param({"FlatVectorScorer.scalar", "FlatVectorScorer.vectorized", "FlatVectorScorer.parallel", "KnnFloatVectorQuery"})
+    public String operation;
+
+    private Closeable operations;
+    private Callable<Object> op;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        Class<?> type = Class.forName("VectorOperations");
+        operations = (Closeable) type.getConstructor(int.class, int.class, long.class, int.class)
+                .newInstance(docs, dim, seed, k);
+        op = (Callable<Object>) type.getMethod("get", String.class).invoke(operations, operation);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        operations.close();
+    }
+
+    @Benchmark
+    public Object run() throws Exception {
+        return op.call();
+    }
+}
@@ -0,0 +1,318 @@
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.custom.CustomAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.util.FilesystemResourceLoader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.ResourceLoader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Configuración declarativa de analyzers en un fichero .properties, construida con CustomAnalyzer. Indexador y
+ * buscador leen el mismo fichero, y el indexador guarda la configuración en los datos del commit para que el buscador
+ * use por defecto exactamente la misma.
+ *
+ * Claves, para cada prefijo:
+ *  - PREFIJO.tokenizer: nombre SPI del tokenizer (standard por defecto).
+ *  - PREFIJO.charfilters: nombres SPI de los char filters, separados por comas.
+ *  - PREFIJO.filters: nombres SPI de los token filters, en orden (lowercase por defecto, como StandardAnalyzer).
+ *  - PREFIJO.COMPONENTE.PARAMETRO: parámetros del tokenizer o de un filtro (p.ej. default.stop.words = stop.txt).
+ * El prefijo default es el analyzer de todos los campos y field.CAMPO el de un campo concreto. Los ficheros de
+ * recursos (stopwords, sinónimos) se buscan en el directorio del fichero de configuración, y su contenido también se
+ * guarda en el commit: el buscador usa los mismos recursos aunque el fichero cambie o se mueva después. Por ejemplo:
+ *
+ *   default.filters = lowercase, stop, porterStem
+ *   field.title.filters = lowercase, shingle
+ *   field.title.shingle.maxShingleSize = 3
+ */
+public class AnalyzerConfig {
+
+    static final String CONFIG_KEY = "analyzer.config";
+    static final String BASE_DIR_KEY = "analyzer.basedir";
+    static final String RESOURCE_KEY_PREFIX = "analyzer.resource.";
+
+    private static final String DEFAULT_PREFIX = "default";
+    private static final String FIELD_PREFIX = "field.";
+
+    private final SortedMap<String, String> properties;
+    private final Path baseDir;
+    // Recursos guardados en el índice, que tienen prioridad sobre los ficheros de baseDir
+    private final Map<String, byte[]> storedResources;
+
+    private AnalyzerConfig(SortedMap<String, String> properties, Path baseDir, Map<String, byte[]> storedResources) {
+        this.properties = properties;
+        this.baseDir = baseDir;
+        this.storedResources = storedResources;
+    }
+
+    public static AnalyzerConfig load(String file) throws IOException {
+        Path path = Paths.get(file).toAbsolutePath();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return parse(reader, path.getParent(), Map.of());
+        }
+    }
+
+    private static AnalyzerConfig parse(Reader reader, Path baseDir, Map<String, byte[]> storedResources) throws IOException {
+        Properties loaded = new Properties();
+        loaded.load(reader);
+        SortedMap<String, String> properties = new TreeMap<>();
+        for (String key : loaded.stringPropertyNames()) {
+            properties.put(key.trim(), loaded.getProperty(key).trim());
+        }
+        return new AnalyzerConfig(properties, baseDir, storedResources);
+    }
+
+    /**
+     * Configuración guardada en los datos del commit por el indexador, o null si el índice se creó sin ella.
+     */
+    public static AnalyzerConfig fromCommitData(Map<String, String> userData) throws IOException {
+        String config = userData.get(CONFIG_KEY);
+        if (config == null) {
+            return null;
+        }
+        String baseDir = userData.get(BASE_DIR_KEY);
+        // Los índices creados antes de guardar los recursos los leen de baseDir
+        Map<String, byte[]> resources = new HashMap<>();
+        for (Map.Entry<String, String> entry : userData.entrySet()) {
+            if (entry.getKey().startsWith(RESOURCE_KEY_PREFIX)) {
+                resources.put(entry.getKey().substring(RESOURCE_KEY_PREFIX.length()),
+                        Base64.getDecoder().decode(entry.getValue()));
+            }
+        }
+        return parse(new StringReader(config), baseDir == null ? Paths.get(".") : Paths.get(baseDir), resources);
+    }
+
+    /**
+     * Analyzer para buscar en el índice: el del fichero dado si no es null; si no, el que se guardó al indexar; si
+     * tampoco hay, StandardAnalyzer (el que se usaba antes de poder configurarlo).
+     */
+    public static Analyzer forIndex(IndexReader reader, String file) throws IOException {
+        if (file != null) {
+            return load(file).build();
+        }
+        if (reader instanceof DirectoryReader) {
+            AnalyzerConfig stored = fromCommitData(((DirectoryReader) reader).getIndexCommit().getUserData());
+            if (stored != null) {
+                return stored.build();
+            }
+        }
+        return defaults().build();
+    }
+
+    /**
+     * Configuración vacía: standard + lowercase en todos los campos, equivalente a StandardAnalyzer.
+     */
+    public static AnalyzerConfig defaults() {
+        return new AnalyzerConfig(new TreeMap<>(), Paths.get("."), Map.of());
+    }
+
+    public Analyzer build() throws IOException {
+        return build(new ConfigResourceLoader());
+    }
+
+    private Analyzer build(ResourceLoader loader) throws IOException {
+        Analyzer defaultAnalyzer = build(DEFAULT_PREFIX, loader);
+        Map<String, Analyzer> fieldAnalyzers = new HashMap<>();
+        for (String field : fields()) {
+            fieldAnalyzers.put(field, build(FIELD_PREFIX + field, loader));
+        }
+        return fieldAnalyzers.isEmpty() ? defaultAnalyzer : new PerFieldAnalyzerWrapper(defaultAnalyzer, fieldAnalyzers);
+    }
+
+    private Set<String> fields() {
+        Set<String> fields = new TreeSet<>();
+        for (String key : properties.keySet()) {
+            if (key.startsWith(FIELD_PREFIX)) {
+                int dot = key.indexOf('.', FIELD_PREFIX.length());
+                if (dot > 0) {
+                    fields.add(key.substring(FIELD_PREFIX.length(), dot));
+                }
+            }
+        }
+        return fields;
+    }
+
+    private Analyzer build(String prefix, ResourceLoader loader) throws IOException {
+        CustomAnalyzer.Builder builder = CustomAnalyzer.builder(loader);
+        for (String charFilter : list(prefix + ".charfilters", "")) {
+            builder.addCharFilter(charFilter, params(prefix, charFilter));
+        }
+        String tokenizer = properties.getOrDefault(prefix + ".tokenizer", "standard");
+        builder.withTokenizer(tokenizer, params(prefix, tokenizer));
+        for (String filter : list(prefix + ".filters", "lowercase")) {
+            builder.addTokenFilter(filter, params(prefix, filter));
+        }
+        try {
+            return builder.build();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Configuración de analyzer no válida para " + prefix + ": " + e.getMessage(), e);
+        }
+    }
+
+    private List<String> list(String key, String defaultValue) {
+        List<String> values = new ArrayList<>();
+        for (String value : properties.getOrDefault(key, defaultValue).split(",")) {
+            if (!value.isBlank()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    // Mapa nuevo en cada llamada: las factorías consumen los parámetros que reconocen
+    private Map<String, String> params(String prefix, String component) {
+        String start = prefix + "." + component + ".";
+        Map<String, String> params = new HashMap<>();
+        for (Map.Entry<String, String> entry : properties.subMap(start, start + Character.MAX_VALUE).entrySet()) {
+            params.put(entry.getKey().substring(start.length()), entry.getValue());
+        }
+        return params;
+    }
+
+    /**
+     * Configuración normalizada (una clave por línea, en orden), para guardarla en el índice y compararla.
+     */
+    public String canonical() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            text.append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Contenido de los ficheros de recursos (stopwords, sinónimos...) que lee la configuración al construirse, por
+     * nombre tal y como aparece en ella.
+     */
+    public SortedMap<String, byte[]> resources() throws IOException {
+        ConfigResourceLoader loader = new ConfigResourceLoader();
+        build(loader);
+        return loader.opened;
+    }
+
+    /**
+     * canonical() más un SHA-256 del contenido de cada recurso, para detectar si el analyzer cambia aunque el texto
+     * de la configuración sea el mismo. Sin recursos es igual que canonical().
+     */
+    public String signature() throws IOException {
+        StringBuilder text = new StringBuilder(canonical());
+        try {
+            for (Map.Entry<String, byte[]> resource : resources().entrySet()) {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(resource.getValue());
+                text.append("resource ").append(resource.getKey()).append(" = ");
+                for (byte b : hash) {
+                    text.append(String.format("%02x", b));
+                }
+                text.append('\n');
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Datos del commit con los que el buscador reconstruye el mismo analyzer, con los recursos incluidos.
+     */
+    public Map<String, String> commitData() throws IOException {
+        Map<String, String> data = new HashMap<>();
+        data.put(CONFIG_KEY, canonical());
+        data.put(BASE_DIR_KEY, baseDir.toString());
+        for (Map.Entry<String, byte[]> resource : resources().entrySet()) {
+            data.put(RESOURCE_KEY_PREFIX + resource.getKey(), Base64.getEncoder().encodeToString(resource.getValue()));
+        }
+        return data;
+    }
+
+    /**
+     * Lee los recursos de storedResources o, si no están, de baseDir (o del classpath, como CustomAnalyzer), y
+     * guarda el contenido de todos los que se abren.
+     */
+    private class ConfigResourceLoader implements ResourceLoader {
+        private final ResourceLoader files = new FilesystemResourceLoader(baseDir, AnalyzerConfig.class.getClassLoader());
+        private final SortedMap<String, byte[]> opened = new TreeMap<>();
+
+        @Override
+        public InputStream openResource(String resource) throws IOException {
+            byte[] content = storedResources.get(resource);
+            if (content == null) {
+                try (InputStream in = files.openResource(resource)) {
+                    content = in.readAllBytes();
+                }
+            }
+            opened.put(resource, content);
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public <T> Class<? extends T> findClass(String cname, Class<T> expectedType) {
+            return files.findClass(cname, expectedType);
+        }
+    }
+
+    /**
+     * TokenStream ya analizado: analiza el texto entero con el analyzer del campo y guarda el estado de cada token,
+     * para analizar documentos en otros hilos y dárselos después al IndexWriter, que reproduce los tokens en orden. El stream del analyzer se cierra aquí, en el hilo que lo usó, así que los componentes que
+     * el analyzer reutiliza por hilo no se comparten.
+     */
+    public static TokenStream preAnalyze(Analyzer analyzer, String field, String text) throws IOException {
+        List<AttributeSource.State> states = new ArrayList<>();
+        AttributeSource.State end;
+        AttributeSource attributes;
+        try (TokenStream source = analyzer.tokenStream(field, text)) {
+            source.reset();
+            while (source.incrementToken()) {
+                states.add(source.captureState());
+            }
+            source.end();
+            end = source.captureState();
+            attributes = source.cloneAttributes();
+        }
+        return new CachedTokenStream(attributes, states, end);
+    }
+
+    private static class CachedTokenStream extends TokenStream {
+        private final List<AttributeSource.State> states;
+        private final AttributeSource.State end;
+        private int next;
+
+        CachedTokenStream(AttributeSource attributes, List<AttributeSource.State> states, AttributeSource.State end) {
+            super(attributes);
+            this.states = states;
+            this.end = end;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (next == states.size()) {
+                return false;
+            }
+            restoreState(states.get(next++));
+            return true;
+        }
+
+        @Override
+        public void end() {
+            restoreState(end);
+        }
+
+        @Override
+        public void reset() {
+            next = 0;
+        }
+    }
+}
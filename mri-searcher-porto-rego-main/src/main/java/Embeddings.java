@@ -0,0 +1,251 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Embeddings precalculados de un fichero local, indexados por id (_id del corpus o id de query).
+ *
+ * Formatos soportados, según la extensión:
+ *  - .fvecs: para cada vector, la dimensión (int32) seguida de sus componentes (float32), en little endian.
+ *  - .npy: matriz float32 de dos dimensiones (descr '<f4', orden C) guardada con numpy.save.
+ * Los ids van en un fichero de texto con el mismo nombre y extensión .ids, uno por línea y en el mismo orden
+ * que las filas de la matriz.
+ *
+ * La matriz no se copia al heap: se mapea en memoria (FileChannel.map) en bloques de filas completas de menos de
+ * 2 GB y las filas se leen directamente de las páginas mapeadas, así que ni el tiempo de carga ni el heap dependen
+ * del tamaño de la matriz. Los ids se leen la primera vez que se necesitan.
+ */
+public class Embeddings {
+
+    private static final Pattern NPY_SHAPE = Pattern.compile("'shape':\\s*\\((\\d+),\\s*(\\d+)\\)");
+
+    private final Path path;
+    private final Layout layout;
+    private final ByteBuffer[] chunks;
+    private final int rowsPerChunk;
+
+    private List<String> ids;
+    private Map<String, Integer> rows;
+
+    private Embeddings(Path path, Layout layout, ByteBuffer[] chunks, int rowsPerChunk) {
+        this.path = path;
+        this.layout = layout;
+        this.chunks = chunks;
+        this.rowsPerChunk = rowsPerChunk;
+    }
+
+    public static Embeddings load(String file) throws IOException {
+        Path path = Paths.get(file);
+        Layout layout = layout(path);
+
+        long rowBytes = (long) layout.dimension * Float.BYTES;
+        if (layout.rows > 0 && layout.offset + (layout.rows - 1) * layout.stride + rowBytes > Files.size(path)) {
+            throw new IOException("Fin de fichero inesperado en " + path);
+        }
+        if (layout.stride > Integer.MAX_VALUE) {
+            throw new IOException(path + ": las filas son demasiado grandes para mapearlas");
+        }
+
+        int rowsPerChunk = (int) Math.max(1, Math.min(layout.rows, (Integer.MAX_VALUE - rowBytes) / layout.stride + 1));
+        int numChunks = layout.rows == 0 ? 0 : (layout.rows + rowsPerChunk - 1) / rowsPerChunk;
+        ByteBuffer[] chunks = new ByteBuffer[numChunks];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (int i = 0; i < numChunks; i++) {
+                int first = i * rowsPerChunk;
+                int count = Math.min(rowsPerChunk, layout.rows - first);
+                long start = layout.offset + first * layout.stride;
+                long length = (count - 1) * layout.stride + rowBytes;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        return new Embeddings(path, layout, chunks, rowsPerChunk);
+    }
+
+    public static Path idsPath(Path vectorsPath) {
+        String name = vectorsPath.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return vectorsPath.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".ids");
+    }
+
+    private static List<String> readIds(Path vectorsPath) throws IOException {
+        List<String> ids = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(idsPath(vectorsPath), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    ids.add(line.trim());
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Disposición de la matriz en el fichero: número de filas, dimensión, byte donde empieza la primera fila y bytes
+     * entre el comienzo de dos filas consecutivas.
+     */
+    private static class Layout {
+        final int rows;
+        final int dimension;
+        final long offset;
+        final long stride;
+
+        Layout(int rows, int dimension, long offset, long stride) {
+            this.rows = rows;
+            this.dimension = dimension;
+            this.offset = offset;
+            this.stride = stride;
+        }
+    }
+
+    // Sólo se leen las cabeceras: el número de filas se deduce del tamaño del fichero o de la forma de la matriz
+    private static Layout layout(Path path) throws IOException {
+        String name = path.getFileName().toString().toLowerCase();
+        long size = Files.size(path);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            if (name.endsWith(".fvecs")) {
+                byte[] dim = in.readNBytes(Integer.BYTES);
+                if (dim.length != Integer.BYTES) {
+                    throw new IOException(path + " está vacío");
+                }
+                int dimension = ByteBuffer.wrap(dim).order(ByteOrder.LITTLE_ENDIAN).getInt();
+                long stride = Integer.BYTES + (long) dimension * Float.BYTES;
+                if (size % stride != 0) {
+                    throw new IOException("Dimensión inconsistente o fin de fichero inesperado en " + path);
+                }
+                return new Layout((int) (size / stride), dimension, Integer.BYTES, stride);
+            } else if (name.endsWith(".npy")) {
+                byte[] magic = in.readNBytes(8);
+                if (magic.length != 8 || (magic[0] & 0xFF) != 0x93 || magic[1] != 'N') {
+                    throw new IOException(path + " no es un fichero .npy");
+                }
+                int lengthBytes = magic[6] == 1 ? 2 : 4;
+                byte[] len = in.readNBytes(lengthBytes);
+                int headerLength = lengthBytes == 2 ? (len[0] & 0xFF) | (len[1] & 0xFF) << 8
+                        : ByteBuffer.wrap(len).order(ByteOrder.LITTLE_ENDIAN).getInt();
+                String header = new String(in.readNBytes(headerLength), StandardCharsets.ISO_8859_1);
+                if (!header.contains("'<f4'") || header.contains("'fortran_order': True")) {
+                    throw new IOException(path + ": sólo se admiten matrices float32 little endian en orden C");
+                }
+                Matcher shape = NPY_SHAPE.matcher(header);
+                if (!shape.find()) {
+                    throw new IOException(path + ": la matriz debe tener dos dimensiones");
+                }
+                int dimension = Integer.parseInt(shape.group(2));
+                return new Layout(Integer.parseInt(shape.group(1)), dimension, 8 + lengthBytes + headerLength,
+                        (long) dimension * Float.BYTES);
+            }
+        }
+        throw new IllegalArgumentException("Formato de embeddings no soportado: " + path + " (se esperaba .fvecs o .npy)");
+    }
+
+    private synchronized void loadIds() {
+        if (ids != null) {
+            return;
+        }
+        List<String> fileIds;
+        try {
+            fileIds = readIds(path);
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudieron leer los ids de " + path, e);
+        }
+        if (fileIds.size() != layout.rows) {
+            throw new IllegalArgumentException("El fichero de ids tiene " + fileIds.size() + " líneas y hay "
+                    + layout.rows + " vectores");
+        }
+        Map<String, Integer> fileRows = new HashMap<>(fileIds.size() * 2);
+        for (int i = 0; i < fileIds.size(); i++) {
+            fileRows.put(fileIds.get(i), i);
+        }
+        rows = fileRows;
+        ids = Collections.unmodifiableList(fileIds);
+    }
+
+    /**
+     * Fila del id dado, o -1 si no hay embedding para él.
+     */
+    public int row(String id) {
+        loadIds();
+        Integer row = rows.get(id);
+        return row == null ? -1 : row;
+    }
+
+    public String id(int row) {
+        loadIds();
+        return ids.get(row);
+    }
+
+    /**
+     * Copia del vector del id dado, o null si no hay embedding para él.
+     */
+    public float[] get(String id) {
+        int row = row(id);
+        return row < 0 ? null : vector(row);
+    }
+
+    /**
+     * Copia del vector de la fila row, en el orden del fichero.
+     */
+    public float[] vector(int row) {
+        float[] vector = new float[layout.dimension];
+        copy(row, vector);
+        return vector;
+    }
+
+    /**
+     * Copia la fila row en dest, que debe tener la dimensión de los embeddings. Permite reutilizar el array.
+     */
+    public void copy(int row, float[] dest) {
+        view(row).get(dest, 0, layout.dimension);
+    }
+
+    /**
+     * Vista de sólo lectura de la fila row sobre la región mapeada, sin copiarla.
+     */
+    public FloatBuffer view(int row) {
+        return chunk(row).slice(offset(row), layout.dimension * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    /**
+     * Componente i de la fila row.
+     */
+    public float get(int row, int i) {
+        return chunk(row).getFloat(offset(row) + i * Float.BYTES);
+    }
+
+    /**
+     * Buffer mapeado (little endian) que contiene la fila row, que empieza en su byte offset(row).
+     */
+    ByteBuffer chunk(int row) {
+        return chunks[row / rowsPerChunk];
+    }
+
+    int offset(int row) {
+        return (int) ((row % rowsPerChunk) * layout.stride);
+    }
+
+    public int dimension() {
+        return layout.dimension;
+    }
+
+    public int size() {
+        return layout.rows;
+    }
+}
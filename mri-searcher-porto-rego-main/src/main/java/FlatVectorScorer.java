@@ -0,0 +1,222 @@
+import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.VectorUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Búsqueda exacta (fuerza bruta) sobre una matriz de embeddings mapeada en memoria (Embeddings): se puntúan todas
+ * las filas, o sólo las de un filtro, y se devuelven las k mejores. Sirve como referencia para medir el recall del
+ * grafo HNSW y para subconjuntos filtrados pequeños, donde recorrer el grafo no compensa.
+ *
+ * Las puntuaciones son las mismas que las de Lucene para cada VectorSimilarityFunction, así que se pueden comparar
+ * directamente con las de KnnFloatVectorQuery. Las filas se dividen en bloques que se puntúan en paralelo en un
+ * ForkJoinPool, cada uno con su propio heap de tamaño k, y los heaps se mezclan al unir las tareas.
+ */
+public class FlatVectorScorer {
+
+    // Filas por tarea: por debajo de este tamaño no compensa dividir más
+    private static final int LEAF_ROWS = 4096;
+
+    private final Embeddings embeddings;
+    private final VectorSimilarityFunction similarity;
+    private final VectorOps ops;
+    private final ForkJoinPool pool;
+
+    public FlatVectorScorer(String file, VectorSimilarityFunction similarity) throws IOException {
+        this(Embeddings.load(file), similarity, VectorOps.create(), ForkJoinPool.commonPool());
+    }
+
+    public FlatVectorScorer(Embeddings embeddings, VectorSimilarityFunction similarity, VectorOps ops, ForkJoinPool pool) {
+        this.embeddings = embeddings;
+        this.similarity = similarity;
+        this.ops = ops;
+        this.pool = pool;
+    }
+
+    public ScoreDoc[] search(float[] query, int k) {
+        return search(query, k, null);
+    }
+
+    /**
+     * Las k filas más similares a query entre las que están en filter (todas si es null), de mayor a menor score y,
+     * a igualdad, de menor a mayor fila. El doc de cada ScoreDoc es la fila; su id se obtiene con id(fila).
+     */
+    public ScoreDoc[] search(float[] query, int k, BitSet filter) {
+        if (query.length != embeddings.dimension()) {
+            throw new IllegalArgumentException("La query tiene dimensión " + query.length + " y la matriz "
+                    + embeddings.dimension());
+        }
+        if (k <= 0 || embeddings.size() == 0) {
+            return new ScoreDoc[0];
+        }
+        float queryNorm = similarity == VectorSimilarityFunction.COSINE ? VectorUtil.dotProduct(query, query) : 0;
+        TopK top = pool.invoke(new ScoreTask(query, queryNorm, Math.min(k, embeddings.size()), filter, 0, embeddings.size()));
+        return top.toScoreDocs();
+    }
+
+    public String id(int row) {
+        return embeddings.id(row);
+    }
+
+    public int size() {
+        return embeddings.size();
+    }
+
+    public int dimension() {
+        return embeddings.dimension();
+    }
+
+    public String getOpsName() {
+        return ops.name();
+    }
+
+    private float score(float[] query, float queryNorm, int row) {
+        ByteBuffer matrix = embeddings.chunk(row);
+        int offset = embeddings.offset(row);
+        switch (similarity) {
+            case EUCLIDEAN:
+                return 1 / (1 + ops.squareDistance(query, matrix, offset));
+            case DOT_PRODUCT:
+                return Math.max((1 + ops.dotProduct(query, matrix, offset)) / 2, 0);
+            case COSINE:
+                float norm = ops.squareNorm(matrix, offset, embeddings.dimension());
+                float cosine = queryNorm == 0 || norm == 0 ? 0
+                        : ops.dotProduct(query, matrix, offset) / (float) Math.sqrt((double) queryNorm * norm);
+                return Math.max((1 + cosine) / 2, 0);
+            case MAXIMUM_INNER_PRODUCT:
+                return VectorUtil.scaleMaxInnerProductScore(ops.dotProduct(query, matrix, offset));
+            default:
+                throw new IllegalStateException("Similitud no soportada: " + similarity);
+        }
+    }
+
+    private class ScoreTask extends RecursiveTask<TopK> {
+        private static final long serialVersionUID = 1L;
+
+        private final float[] query;
+        private final float queryNorm;
+        private final int k;
+        private final BitSet filter;
+        private final int from;
+        private final int to;
+
+        ScoreTask(float[] query, float queryNorm, int k, BitSet filter, int from, int to) {
+            this.query = query;
+            this.queryNorm = queryNorm;
+            this.k = k;
+            this.filter = filter;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TopK compute() {
+            if (to - from <= LEAF_ROWS) {
+                TopK top = new TopK(k);
+                if (filter == null) {
+                    for (int row = from; row < to; row++) {
+                        top.insert(row, score(query, queryNorm, row));
+                    }
+                } else {
+                    for (int row = filter.nextSetBit(from); row >= 0 && row < to; row = filter.nextSetBit(row + 1)) {
+                        top.insert(row, score(query, queryNorm, row));
+                    }
+                }
+                return top;
+            }
+            int middle = (from + to) >>> 1;
+            ScoreTask left = new ScoreTask(query, queryNorm, k, filter, from, middle);
+            left.fork();
+            TopK right = new ScoreTask(query, queryNorm, k, filter, middle, to).compute();
+            return left.join().merge(right);
+        }
+    }
+
+    /**
+     * Heap de mínimos con las k mejores filas: la raíz es la peor (menor score y, a igualdad, mayor fila).
+     */
+    static class TopK {
+        private final int[] rows;
+        private final float[] scores;
+        private int size;
+
+        TopK(int k) {
+            this.rows = new int[k];
+            this.scores = new float[k];
+        }
+
+        void insert(int row, float score) {
+            if (size < rows.length) {
+                rows[size] = row;
+                scores[size] = score;
+                siftUp(size++);
+            } else if (worse(rows[0], scores[0], row, score)) {
+                rows[0] = row;
+                scores[0] = score;
+                siftDown(0);
+            }
+        }
+
+        TopK merge(TopK other) {
+            for (int i = 0; i < other.size; i++) {
+                insert(other.rows[i], other.scores[i]);
+            }
+            return this;
+        }
+
+        ScoreDoc[] toScoreDocs() {
+            ScoreDoc[] hits = new ScoreDoc[size];
+            for (int i = 0; i < size; i++) {
+                hits[i] = new ScoreDoc(rows[i], scores[i]);
+            }
+            Arrays.sort(hits, (a, b) -> a.score != b.score ? Float.compare(b.score, a.score) : Integer.compare(a.doc, b.doc));
+            return hits;
+        }
+
+        private static boolean worse(int rowA, float scoreA, int rowB, float scoreB) {
+            return scoreA < scoreB || (scoreA == scoreB && rowA > rowB);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!worse(rows[i], scores[i], rows[parent], scores[parent])) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int left = 2 * i + 1;
+                if (left >= size) {
+                    break;
+                }
+                int child = left + 1 < size && worse(rows[left + 1], scores[left + 1], rows[left], scores[left])
+                        ? left + 1 : left;
+                if (!worse(rows[child], scores[child], rows[i], scores[i])) {
+                    break;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int row = rows[i];
+            rows[i] = rows[j];
+            rows[j] = row;
+            float score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Búsqueda híbrida léxica + vectorial. Para cada query se lanzan a la vez, en un executor compartido, la query léxica
+ * (BM25/JM) y la query kNN, y sus rankings se fusionan con Reciprocal Rank Fusion o con una combinación ponderada
+ * de los scores normalizados (min-max). La latencia de cada query es la de la más lenta de las dos más la fusión.
+ */
+public class HybridSearch {
+
+    public enum Fusion { RRF, WEIGHTED }
+
+    private final IndexSearcher searcher;
+    private final ExecutorService executor;
+    private final Fusion fusion;
+    private final float alpha;
+    private final int rrfK;
+
+    /**
+     * @param alpha peso del ranking vectorial en la fusión ponderada (el léxico pesa 1 - alpha)
+     * @param rrfK constante k de RRF: score = sum(1 / (k + rank))
+     */
+    public HybridSearch(IndexSearcher searcher, ExecutorService executor, Fusion fusion, float alpha, int rrfK) {
+        this.searcher = searcher;
+        this.executor = executor;
+        this.fusion = fusion;
+        this.alpha = alpha;
+        this.rrfK = rrfK;
+    }
+
+    /**
+     * Evalúa las queries presentes en los dos mapas, en orden de id, con la misma evaluación que
+     * QueryUtils.evaluateQueries. stats puede ser null.
+     */
+    public List<QueryResults> evaluateQueries(Map<Integer, Query> lexicalQueries, Map<Integer, Query> vectorQueries,
+                                              int cut, int topDocs, MetricEngine engine, SearchStats stats) {
+        List<QueryResults> totalResults = new ArrayList<>();
+
+        for (int queryId : new TreeSet<>(lexicalQueries.keySet())) {
+            Query lexical = lexicalQueries.get(queryId);
+            Query vector = vectorQueries.get(queryId);
+            if (vector == null) {
+                continue;
+            }
+
+            try {
+                int depth = Math.max(Math.max(topDocs, cut), engine.getDepth(QueryResults.getJudgements(queryId)));
+                QueryUtils.CountingCollector lexicalCollector =
+                        new QueryUtils.CountingCollector(TopScoreDocCollector.create(depth, QueryUtils.TOTAL_HITS_THRESHOLD));
+                QueryUtils.CountingCollector vectorCollector =
+                        new QueryUtils.CountingCollector(TopScoreDocCollector.create(depth, QueryUtils.TOTAL_HITS_THRESHOLD));
+
+                long start = System.nanoTime();
+                Future<TopDocs> lexicalResult = executor.submit(() -> {
+                    searcher.search(lexical, lexicalCollector);
+                    return lexicalCollector.topDocs();
+                });
+                Future<TopDocs> vectorResult = executor.submit(() -> {
+                    searcher.search(vector, vectorCollector);
+                    return vectorCollector.topDocs();
+                });
+                TopDocs lexicalDocs = lexicalResult.get();
+                TopDocs vectorDocs = vectorResult.get();
+                ScoreDoc[] hits = fuse(lexicalDocs, vectorDocs, depth);
+                long searchNanos = System.nanoTime() - start;
+
+                String queryString = lexical + " + " + vector;
+                QueryResults queryResults = new QueryResults(queryId, queryString, hits, cut, searcher, engine);
+
+                if (stats != null) {
+                    // Los documentos encontrados son los candidatos distintos que entran en la fusión: sumar los
+                    // totalHits de las dos búsquedas contaría dos veces los que aparecen en ambas
+                    stats.record(queryId, searchNanos, queryResults.getLoadNanos(),
+                            lexicalCollector.hitsScored + vectorCollector.hitsScored,
+                            candidateCount(lexicalDocs, vectorDocs),
+                            Math.max(lexicalCollector.segmentsVisited, vectorCollector.segmentsVisited));
+                }
+                totalResults.add(queryResults);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return totalResults;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            } catch (UncheckedIOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return totalResults;
+    }
+
+    public ScoreDoc[] fuse(TopDocs lexical, TopDocs vector, int depth) {
+        Map<Integer, Float> fused = new HashMap<>();
+        if (fusion == Fusion.RRF) {
+            addReciprocalRanks(fused, lexical.scoreDocs);
+            addReciprocalRanks(fused, vector.scoreDocs);
+        } else {
+            addNormalizedScores(fused, lexical.scoreDocs, 1 - alpha);
+            addNormalizedScores(fused, vector.scoreDocs, alpha);
+        }
+
+        ScoreDoc[] hits = new ScoreDoc[fused.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Float> entry : fused.entrySet()) {
+            hits[i++] = new ScoreDoc(entry.getKey(), entry.getValue());
+        }
+        // Mayor score primero; a igualdad, menor docID
+        Arrays.sort(hits, (a, b) -> a.score != b.score ? Float.compare(b.score, a.score) : Integer.compare(a.doc, b.doc));
+        return hits.length > depth ? Arrays.copyOf(hits, depth) : hits;
+    }
+
+    /**
+     * Número de documentos distintos entre los candidatos de las dos búsquedas.
+     */
+    static int candidateCount(TopDocs lexical, TopDocs vector) {
+        Set<Integer> candidates = new HashSet<>();
+        for (ScoreDoc hit : lexical.scoreDocs) {
+            candidates.add(hit.doc);
+        }
+        for (ScoreDoc hit : vector.scoreDocs) {
+            candidates.add(hit.doc);
+        }
+        return candidates.size();
+    }
+
+    private void addReciprocalRanks(Map<Integer, Float> fused, ScoreDoc[] ranking) {
+        for (int rank = 1; rank <= ranking.length; rank++) {
+            float contribution = 1.0f / (rrfK + rank);
+            fused.merge(ranking[rank - 1].doc, contribution, Float::sum);
+        }
+    }
+
+    private static void addNormalizedScores(Map<Integer, Float> fused, ScoreDoc[] ranking, float weight) {
+        if (ranking.length == 0) {
+            return;
+        }
+        float max = ranking[0].score;
+        float min = ranking[ranking.length - 1].score;
+        float range = max - min;
+        for (ScoreDoc hit : ranking) {
+            float normalized = range > 0 ? (hit.score - min) / range : 1.0f;
+            fused.merge(hit.doc, weight * normalized, Float::sum);
+        }
+    }
+}
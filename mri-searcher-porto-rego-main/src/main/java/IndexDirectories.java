@@ -0,0 +1,82 @@
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Apertura del directorio de un índice según la opción -directory de las herramientas de búsqueda:
+ *  - mmap: MMapDirectory, sin precarga.
+ *  - niofs: NIOFSDirectory (lecturas con FileChannel, sin mapear los ficheros).
+ *  - preload[:ext1,ext2,...]: MMapDirectory que precarga en memoria (MappedByteBuffer.load) al abrirlos los
+ *    ficheros con las extensiones dadas. Por defecto, postings y normas (doc, pos, pay, tim, tip, tmd, nvd, nvm),
+ *    pero no los campos almacenados (fdt), que sólo se leen para los primeros hits.
+ *  - ram: copia el índice entero a un ByteBuffersDirectory en el heap y lo lee de ahí, sin volver a tocar el disco.
+ * Sin la opción se usa FSDirectory.open, que elige la implementación. En los segmentos compuestos todos los ficheros
+ * están dentro del .cfs, así que para precargarlos hay que incluir cfs en la lista.
+ */
+public class IndexDirectories {
+
+    static final String USAGE = "mmap|niofs|preload[:ext1,ext2,...]|ram";
+    static final Set<String> DEFAULT_PRELOAD = Set.of("doc", "pos", "pay", "tim", "tip", "tmd", "nvd", "nvm");
+
+    public static Directory open(Path path, String spec) throws IOException {
+        if (spec == null) {
+            return FSDirectory.open(path);
+        }
+        int colon = spec.indexOf(':');
+        String type = colon < 0 ? spec : spec.substring(0, colon);
+        switch (type) {
+            case "mmap":
+                return new MMapDirectory(path);
+            case "niofs":
+                return new NIOFSDirectory(path);
+            case "preload":
+                Set<String> extensions = colon < 0 ? DEFAULT_PRELOAD
+                        : new HashSet<>(Arrays.asList(spec.substring(colon + 1).split(",")));
+                MMapDirectory directory = new MMapDirectory(path);
+                directory.setPreload((file, context) -> {
+                    String extension = IndexFileNames.getExtension(file);   // null en segments_N
+                    return extension != null && extensions.contains(extension);
+                });
+                return directory;
+            case "ram":
+                try (Directory disk = FSDirectory.open(path)) {
+                    return copyToMemory(disk);
+                }
+            default:
+                throw new IllegalArgumentException("Tipo de directorio no válido: " + spec + " (" + USAGE + ")");
+        }
+    }
+
+    /**
+     * Copia de todos los ficheros de source en un ByteBuffersDirectory.
+     */
+    public static Directory copyToMemory(Directory source) throws IOException {
+        Directory memory = new ByteBuffersDirectory();
+        for (String file : source.listAll()) {
+            if (!file.equals(IndexWriter.WRITE_LOCK_NAME)) {
+                memory.copyFrom(source, file, file, IOContext.READONCE);
+            }
+        }
+        return memory;
+    }
+
+    /**
+     * Mensaje con el tiempo de apertura del índice (directorio y reader) y la implementación usada.
+     */
+    public static String openTime(Directory directory, String spec, long openNanos) {
+        String name = directory.getClass().getSimpleName() + (spec != null && spec.startsWith("preload") ? " " + spec : "");
+        return String.format(Locale.ROOT, "Apertura del índice (%s): %.1f ms", name, openNanos / 1e6);
+    }
+}
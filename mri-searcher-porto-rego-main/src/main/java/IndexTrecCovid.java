@@ -1,35 +1,101 @@
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.lucene.codecs.KnnVectorsFormat;
+import org.apache.lucene.codecs.lucene95.Lucene95Codec;
+import org.apache.lucene.codecs.lucene95.Lucene95HnswVectorsFormat;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.KnnByteVectorField;
+import org.apache.lucene.document.KnnFloatVectorField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.VectorSimilarityFunction;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.search.similarities.SimilarityBase;
+import org.apache.lucene.store.ByteBuffersDirectory;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.StoredField;
 
 public class IndexTrecCovid {
 
+    // Campo con el embedding del documento para la búsqueda semántica
+    public static final String VECTOR_FIELD = "vector";
+    // Vector float original cuando VECTOR_FIELD está cuantizado (sólo con -keepRaw), para reordenar candidatos
+    public static final String RAW_VECTOR_FIELD = "vector_raw";
+
+    // Clave de los datos del commit con la huella de la configuración que determina el contenido del índice
+    static final String FINGERPRINT_KEY = "index.fingerprint";
+    // Versión de los campos que crea indexDocuments: hay que cambiarla si cambian los campos o sus opciones
+    static final int SCHEMA_VERSION = 1;
+    // Documentos analizados por adelantado con -analysisThreads
+    private static final int MAX_PENDING_DOCS = 256;
+
+    // text con term vectors, para leer las frecuencias de los documentos de feedback de RM3
+    private static final FieldType TEXT_WITH_VECTORS = new FieldType(TextField.TYPE_NOT_STORED);
+    static {
+        TEXT_WITH_VECTORS.setStoreTermVectors(true);
+        TEXT_WITH_VECTORS.freeze();
+    }
+
     public static void main(String[] args) {
         String usage = "IndexTrecCovid"
                 + " [-openmode <openmode>] [-index <index_directory>] [-docs <docs_directory>] " +
-                "[-indexingmodel <model> <model_params>] ";
+                "[-indexingmodel <model> <model_params>] [-embeddings <file.fvecs|file.npy>] " +
+                "[-hnsw <M> <beamWidth>] [-vectorsimilarity cosine|dot_product|euclidean|maximum_inner_product] [-quantize int8 [-keepRaw]] [-force] " +
+                "[-analyzer <config.properties>] [-analysisThreads <n>] [-termvectors]\n" +
+                "-keepRaw guarda además los vectores float del índice int8 en vector_raw, necesarios para reordenar " +
+                "con -rescore en los buscadores (ocupan más que los propios vectores int8).\n" +
+                "-termvectors guarda term vectors del campo text, necesarios para la expansión RM3 de los buscadores.\n" +
+                "-analyzer construye el analyzer con AnalyzerConfig y lo guarda en el índice para que los buscadores usen el " +
+                "mismo (por defecto, standard + lowercase). Con -analysisThreads n, n-1 hilos parsean y analizan los " +
+                "documentos siguientes mientras el principal añade el actual al índice (mismo índice, mismo orden).\n" +
+                "Con -openmode create, si el índice ya existe y se creó con la misma configuración (mismo corpus, analyzer, " +
+                "campos, normas y vectores) se reutiliza sin volver a crearlo, salvo con -force. Los parámetros del modelo " +
+                "no cambian el índice: sólo se usan al buscar";
 
         String indexPath = "index";
         String docsPath = "docs";
         String openMode = "create";
         String indexingModel = "jm";
         float modelParams = 0;
+        String embeddingsPath = null;
+        boolean quantize = false;
+        boolean keepRaw = false;
+        int hnswM = Lucene95HnswVectorsFormat.DEFAULT_MAX_CONN;
+        int hnswBeamWidth = Lucene95HnswVectorsFormat.DEFAULT_BEAM_WIDTH;
+        VectorSimilarityFunction vectorSimilarity = VectorSimilarityFunction.COSINE;
+        boolean force = false;
+        String analyzerPath = null;
+        int analysisThreads = 1;
+        boolean termVectors = false;
 
         final float b = 0.75f;
 
@@ -54,14 +120,77 @@ public class IndexTrecCovid {
                         System.exit(1);
                     }
                     break;
+                case "-embeddings":
+                    embeddingsPath = args[++i];
+                    break;
+                case "-quantize":
+                    if (!args[++i].equals("int8")) {
+                        System.err.println("Sólo se admite la cuantización int8");
+                        System.exit(1);
+                    }
+                    quantize = true;
+                    break;
+                case "-keepRaw":
+                    keepRaw = true;
+                    break;
+                case "-hnsw":
+                    try{
+                        hnswM = Integer.parseInt(args[++i]);
+                        hnswBeamWidth = Integer.parseInt(args[++i]);
+                    }
+                    catch(Exception e){
+                        System.err.println("Uso incorrecto: " + usage);
+                        System.exit(1);
+                    }
+                    break;
+                case "-force":
+                    force = true;
+                    break;
+                case "-analyzer":
+                    analyzerPath = args[++i];
+                    break;
+                case "-termvectors":
+                    termVectors = true;
+                    break;
+                case "-analysisThreads":
+                    try{
+                        analysisThreads = Integer.parseInt(args[++i]);
+                    }
+                    catch(Exception e){
+                        System.err.println("Uso incorrecto: " + usage);
+                        System.exit(1);
+                    }
+                    break;
+                case "-vectorsimilarity":
+                    try{
+                        vectorSimilarity = VectorSimilarityFunction.valueOf(args[++i].toUpperCase());
+                    }
+                    catch(Exception e){
+                        System.err.println("Uso incorrecto: " + usage);
+                        System.exit(1);
+                    }
+                    break;
                 default:
                     System.err.println("Uso incorrecto: " + usage);
                     System.exit(1);
             }
         }
 
+        if (keepRaw && !quantize) {
+            System.err.println("-keepRaw sólo tiene sentido con -quantize int8");
+            System.exit(1);
+        }
+
         // Set up Lucene index writer
-        Analyzer analyzer = new StandardAnalyzer();
+        AnalyzerConfig analyzerConfig = null;
+        Analyzer analyzer = null;
+        try {
+            analyzerConfig = analyzerPath == null ? AnalyzerConfig.defaults() : AnalyzerConfig.load(analyzerPath);
+            analyzer = analyzerConfig.build();
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("No se pudo crear el analyzer: " + e.getMessage());
+            System.exit(1);
+        }
 
         IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
 
@@ -91,49 +220,273 @@ public class IndexTrecCovid {
         }
 
 
+        // Índices idénticos en disco se reutilizan: la similitud sólo influye por cómo codifica las normas
+        String fingerprint = null;
+        if (openMode.equals("create")) {
+            try {
+                fingerprint = fingerprint(analyzerConfig, iwc.getSimilarity(), Paths.get(docsPath, "corpus.jsonl"),
+                        embeddingsPath, quantize, keepRaw, hnswM, hnswBeamWidth, vectorSimilarity, termVectors);
+                if (!force && fingerprint.equals(existingFingerprint(Paths.get(indexPath)))) {
+                    System.out.println("El índice " + indexPath + " ya existe con la misma configuración (huella "
+                            + fingerprint + "): se reutiliza");
+                    return;
+                }
+            } catch (IOException e) {
+                System.err.println("No se pudo comparar la configuración con la del índice existente: " + e);
+            }
+        }
+
+        // Embeddings precalculados de los documentos, indexados en un grafo HNSW con los parámetros dados
+        Embeddings embeddings = null;
+        Float quantizationScale = null;
+        if (embeddingsPath != null) {
+            try {
+                embeddings = Embeddings.load(embeddingsPath);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("No se pudieron cargar los embeddings: " + e.getMessage());
+                System.exit(1);
+            }
+            if (quantize) {
+                quantizationScale = VectorQuantization.computeScale(embeddings);
+            }
+            final KnnVectorsFormat vectorsFormat = new Lucene95HnswVectorsFormat(hnswM, hnswBeamWidth);
+            iwc.setCodec(new Lucene95Codec() {
+                @Override
+                public KnnVectorsFormat getKnnVectorsFormatForField(String field) {
+                    return vectorsFormat;
+                }
+            });
+        }
+
+        // El hilo principal añade los documentos al índice; el resto los analiza
+        ExecutorService analysisExecutor = analysisThreads > 1 ? Executors.newFixedThreadPool(analysisThreads - 1) : null;
         try {
             Directory directory = FSDirectory.open(Paths.get(indexPath));
             IndexWriter writer = new IndexWriter(directory, iwc);
 
             // Index documents from TREC-COVID collection
-            indexDocuments(writer, docsPath);
+            indexDocuments(writer, docsPath, embeddings, vectorSimilarity, quantizationScale, keepRaw, analysisExecutor,
+                    termVectors);
+
+            // El buscador necesita el mismo factor para cuantizar las queries y el mismo analyzer para analizarlas
+            Map<String, String> commitData = new HashMap<>(analyzerConfig.commitData());
+            if (quantizationScale != null) {
+                commitData.put(VectorQuantization.SCALE_KEY, String.valueOf(quantizationScale));
+            }
+            // Sólo se guarda la huella si el índice se ha creado desde cero con esta configuración
+            if (fingerprint != null) {
+                commitData.put(FINGERPRINT_KEY, fingerprint);
+            }
+            writer.setLiveCommitData(commitData.entrySet());
 
             // Close the index writer
             writer.close();
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            if (analysisExecutor != null) {
+                analysisExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Huella (SHA-256 abreviado) de todo lo que determina el contenido del índice: versión de Lucene, campos
+     * (SCHEMA_VERSION), configuración del analyzer y contenido de sus recursos, codificación de las normas, corpus
+     * (ruta, tamaño y fecha de modificación) y, si los hay, embeddings y parámetros del grafo HNSW. De la similitud
+     * sólo cuenta discountOverlaps, que cambia la longitud que se guarda en las normas; k1, b o lambda se aplican al
+     * buscar y no cambian nada en disco.
+     */
+    static String fingerprint(AnalyzerConfig analyzerConfig, Similarity similarity, Path corpus, String embeddingsPath, boolean quantize,
+                              boolean keepRaw, int hnswM, int hnswBeamWidth, VectorSimilarityFunction vectorSimilarity,
+                              boolean termVectors) throws IOException {
+        StringBuilder config = new StringBuilder();
+        config.append("lucene=").append(Version.LATEST)
+                .append(";schema=").append(SCHEMA_VERSION)
+                .append(";analyzer=").append(analyzerConfig.signature())
+                .append(";norms.discountOverlaps=").append(discountOverlaps(similarity))
+                .append(";corpus=").append(fileSignature(corpus));
+        // Sólo si se activan, para no cambiar la huella de los índices creados antes de la opción
+        if (termVectors) {
+            config.append(";termvectors=text");
+        }
+        if (embeddingsPath != null) {
+            config.append(";embeddings=").append(fileSignature(Paths.get(embeddingsPath)))
+                    .append(";ids=").append(fileSignature(Embeddings.idsPath(Paths.get(embeddingsPath))))
+                    .append(";quantize=").append(quantize ? (keepRaw ? "int8+raw" : "int8.noraw") : "none")
+                    .append(";hnsw=").append(hnswM).append(",").append(hnswBeamWidth)
+                    .append(";vectorsimilarity=").append(vectorSimilarity);
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(config.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean discountOverlaps(Similarity similarity) {
+        if (similarity instanceof BM25Similarity) {
+            return ((BM25Similarity) similarity).getDiscountOverlaps();
+        } else if (similarity instanceof SimilarityBase) {
+            return ((SimilarityBase) similarity).getDiscountOverlaps();
+        }
+        throw new IllegalArgumentException("Similitud no soportada: " + similarity);
+    }
+
+    private static String fileSignature(Path file) throws IOException {
+        return file.toAbsolutePath().normalize() + ":" + Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis();
+    }
+
+    /**
+     * Huella guardada en el último commit del índice, o null si no existe o se creó sin ella.
+     */
+    static String existingFingerprint(Path indexPath) throws IOException {
+        if (!Files.isDirectory(indexPath)) {
+            return null;
+        }
+        try (Directory directory = FSDirectory.open(indexPath)) {
+            if (!DirectoryReader.indexExists(directory)) {
+                return null;
+            }
+            return SegmentInfos.readLatestCommit(directory).getUserData().get(FINGERPRINT_KEY);
+        }
+    }
+
+    /**
+     * Índice de corpus.jsonl en un ByteBuffersDirectory, sin vectores, para evaluar en la misma JVM sin escribir el
+     * índice en disco. La configuración del analyzer se guarda en el commit como en IndexTrecCovid.
+     */
+    static Directory indexInMemory(String docsPath, AnalyzerConfig analyzerConfig, boolean termVectors) throws IOException {
+        Directory directory = new ByteBuffersDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(analyzerConfig.build());
+        iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        try (IndexWriter writer = new IndexWriter(directory, iwc)) {
+            indexDocuments(writer, docsPath, null, null, null, false, null, termVectors);
+            writer.setLiveCommitData(analyzerConfig.commitData().entrySet());
         }
+        return directory;
+    }
+
+    static void indexDocuments(IndexWriter writer, String docsPath) {
+        indexDocuments(writer, docsPath, null, null, null, false, null, false);
     }
 
-    private static void indexDocuments(IndexWriter writer, String docsPath) {
+    /**
+     * Indexa corpus.jsonl. Si embeddings no es null, cada documento con embedding recibe además
+     * un KnnFloatVectorField en VECTOR_FIELD o, si quantizationScale no es null, un KnnByteVectorField int8
+     * en VECTOR_FIELD y, con keepRaw, el vector original como BinaryDocValues en RAW_VECTOR_FIELD. Si
+     * analysisExecutor no es null, sus hilos parsean y analizan los documentos siguientes mientras este los añade al
+     * índice en el orden del corpus. Con termVectors, text se indexa con term vectors.
+     */
+    static void indexDocuments(IndexWriter writer, String docsPath, Embeddings embeddings,
+                               VectorSimilarityFunction vectorSimilarity, Float quantizationScale, boolean keepRaw,
+                               ExecutorService analysisExecutor, boolean termVectors) {
         // Lógica para leer y parsear documentos JSONL y agregarlos al índice
 
         try (BufferedReader br = Files.newBufferedReader(Paths.get(docsPath, "corpus.jsonl"))) {
             ObjectMapper mapper = new ObjectMapper();
+            Analyzer analyzer = writer.getAnalyzer();
             String line;
+            // IndexWriter copia los vectores al añadir el documento, así que se reutiliza el mismo array
+            float[] vector = embeddings != null ? new float[embeddings.dimension()] : null;
+            // Documentos en análisis, en orden; como mucho MAX_PENDING_DOCS para acotar la memoria de los tokens
+            Deque<Future<Document>> pending = new ArrayDeque<>();
 
             while ((line = br.readLine()) != null) {
-                JsonNode articleNode = mapper.readTree(line);
+                if (analysisExecutor == null) {
+                    addDocument(writer, parseDocument(mapper, line, null, termVectors), embeddings, vectorSimilarity,
+                            quantizationScale, keepRaw, vector);
+                    continue;
+                }
+                String json = line;
+                pending.add(analysisExecutor.submit(() -> parseDocument(mapper, json, analyzer, termVectors)));
+                if (pending.size() >= MAX_PENDING_DOCS) {
+                    addDocument(writer, getAnalyzed(pending.poll()), embeddings, vectorSimilarity, quantizationScale,
+                            keepRaw, vector);
+                }
+            }
+            while (!pending.isEmpty()) {
+                addDocument(writer, getAnalyzed(pending.poll()), embeddings, vectorSimilarity, quantizationScale,
+                        keepRaw, vector);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Documento de una línea de corpus.jsonl. Si analyzer no es null, title y text se analizan aquí y el documento
+     * lleva los tokens ya analizados (el mismo índice que con TextField almacenado); si no, los analiza el IndexWriter.
+     */
+    private static Document parseDocument(ObjectMapper mapper, String line, Analyzer analyzer, boolean termVectors)
+            throws IOException {
+        JsonNode articleNode = mapper.readTree(line);
 
-                String id = articleNode.get("_id").asText();
-                String title = articleNode.get("title").asText();
-                String text = articleNode.get("text").asText();
+        String id = articleNode.get("_id").asText();
+        String title = articleNode.get("title").asText();
+        String text = articleNode.get("text").asText();
 
-                JsonNode metadataNode = articleNode.get("metadata");
-                String url = metadataNode.get("url").asText();
-                String pubmedId = metadataNode.get("pubmed_id").asText();
+        JsonNode metadataNode = articleNode.get("metadata");
+        String url = metadataNode.get("url").asText();
+        String pubmedId = metadataNode.get("pubmed_id").asText();
 
-                Document doc = new Document();
-                doc.add(new StringField("_id", id, Field.Store.YES));
-                doc.add(new TextField("title", title, Field.Store.YES));
+        Document doc = new Document();
+        doc.add(new StringField("_id", id, Field.Store.YES));
+        if (analyzer != null) {
+            doc.add(new Field("title", AnalyzerConfig.preAnalyze(analyzer, "title", title), TextField.TYPE_NOT_STORED));
+            doc.add(new StoredField("title", title));
+            doc.add(new Field("text", AnalyzerConfig.preAnalyze(analyzer, "text", text),
+                    termVectors ? TEXT_WITH_VECTORS : TextField.TYPE_NOT_STORED));
+            doc.add(new StoredField("text", text));
+        } else {
+            doc.add(new TextField("title", title, Field.Store.YES));
+            if (termVectors) {
+                doc.add(new Field("text", text, TEXT_WITH_VECTORS));
+                doc.add(new StoredField("text", text));
+            } else {
                 doc.add(new TextField("text", text, Field.Store.YES));
-                doc.add(new StringField("url", url, Field.Store.YES));
-                doc.add(new StringField("pubmed_id", pubmedId, Field.Store.YES));
+            }
+        }
+        doc.add(new StringField("url", url, Field.Store.YES));
+        doc.add(new StringField("pubmed_id", pubmedId, Field.Store.YES));
+        return doc;
+    }
 
-                writer.addDocument(doc);
+    private static void addDocument(IndexWriter writer, Document doc, Embeddings embeddings,
+                                    VectorSimilarityFunction vectorSimilarity, Float quantizationScale, boolean keepRaw,
+                                    float[] vector) throws IOException {
+        if (embeddings != null) {
+            int row = embeddings.row(doc.get("_id"));
+            if (row >= 0) {
+                embeddings.copy(row, vector);
+                if (quantizationScale != null) {
+                    byte[] quantized = VectorQuantization.quantize(vector, quantizationScale);
+                    doc.add(new KnnByteVectorField(VECTOR_FIELD, quantized, vectorSimilarity));
+                    if (keepRaw) {
+                        doc.add(new BinaryDocValuesField(RAW_VECTOR_FIELD, VectorQuantization.encode(vector)));
+                    }
+                } else {
+                    doc.add(new KnnFloatVectorField(VECTOR_FIELD, vector, vectorSimilarity));
+                }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        }
+
+        writer.addDocument(doc);
+    }
+
+    private static Document getAnalyzed(Future<Document> doc) throws IOException {
+        try {
+            return doc.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error al analizar el documento", e.getCause());
         }
     }
 
@@ -0,0 +1,430 @@
+import java.util.*;
+
+/**
+ * Motor de métricas de evaluación. Calcula cualquier conjunto de métricas en una única pasada
+ * sobre la lista ordenada de resultados de una query.
+ *
+ * Las métricas se nombran como "p@10", "r@10", "rr", "ap@100", "ndcg@10", "rprec", "bpref", "infap" o "success@5".
+ * El corte (@k) es opcional salvo en success; sin él la métrica se calcula sobre toda la lista recuperada.
+ */
+public class MetricEngine {
+
+    private static final int NO_CUT = Integer.MAX_VALUE;
+    // Profundidad del ranking para bpref e infAP, como la de los runs de trec_eval
+    static final int DEEP_DEPTH = 1000;
+
+    private final List<String> names;
+    private final int depth;
+    private final boolean needsR;
+    private final boolean needsDeep;
+
+    public MetricEngine(Collection<String> metricNames) {
+        this.names = new ArrayList<>(new LinkedHashSet<>(metricNames));
+        int maxCut = 0;
+        boolean rPrecision = false;
+        boolean deep = false;
+        for (String name : names) {
+            // Crea la métrica para validar el nombre antes de evaluar ninguna query
+            Metric metric = createMetric(name);
+            if (metric.cut != NO_CUT) {
+                maxCut = Math.max(maxCut, metric.cut);
+            }
+            rPrecision |= metric instanceof RPrecision;
+            deep |= metric instanceof Bpref || metric instanceof InfAP;
+        }
+        this.depth = maxCut;
+        this.needsR = rPrecision;
+        this.needsDeep = deep;
+    }
+
+    /**
+     * Métricas calculadas siempre: las cuatro originales (P, Recall, RR y AP con corte n) más nDCG,
+     * R-precision, bpref, infAP y success@n.
+     */
+    public static List<String> defaultMetrics(int cut) {
+        return List.of("p@" + cut, "r@" + cut, "rr@" + cut, "ap@" + cut,
+                "ndcg@" + cut, "rprec", "bpref", "infap", "success@" + cut);
+    }
+
+    /**
+     * Crea un motor con las métricas por defecto para el corte dado y las indicadas en spec
+     * (lista separada por comas, p.ej. "p@5,p@100,ndcg@20"). spec puede ser null.
+     */
+    public static MetricEngine withDefaults(int cut, String spec) {
+        List<String> metricNames = new ArrayList<>(defaultMetrics(cut));
+        metricNames.addAll(parseSpec(spec));
+        return new MetricEngine(metricNames);
+    }
+
+    public static List<String> parseSpec(String spec) {
+        List<String> metricNames = new ArrayList<>();
+        if (spec == null) {
+            return metricNames;
+        }
+        for (String name : spec.split(",")) {
+            if (!name.isBlank()) {
+                metricNames.add(name.trim().toLowerCase());
+            }
+        }
+        return metricNames;
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Documentos que hay que buscar para calcular todas las métricas de la query con una sola búsqueda: el mayor
+     * corte pedido, R (los relevantes de la query) si se pide rprec y DEEP_DEPTH si se pide bpref o infap, que no
+     * tienen corte y se calculan sobre el ranking completo. Con menos, esas métricas saldrían truncadas.
+     */
+    public int getDepth(Map<String, Integer> judgements) {
+        int queryDepth = depth;
+        if (needsR || needsDeep) {
+            int numRelevant = 0;
+            for (int grade : judgements.values()) {
+                if (grade > 0) numRelevant++;
+            }
+            queryDepth = Math.max(queryDepth, numRelevant);
+        }
+        if (needsDeep) {
+            queryDepth = Math.max(queryDepth, DEEP_DEPTH);
+        }
+        return queryDepth;
+    }
+
+    /**
+     * Evalúa la lista ordenada de ids de corpus frente a los juicios de relevancia de la query
+     * (id de corpus -> grado). Un grado mayor que 0 significa relevante; un grado 0 significa juzgado no relevante.
+     */
+    public Map<String, Float> evaluate(List<String> rankedIds, Map<String, Integer> judgements) {
+        Judgements j = new Judgements(judgements);
+
+        List<Metric> metrics = new ArrayList<>(names.size());
+        for (String name : names) {
+            Metric metric = createMetric(name);
+            metric.start(j);
+            metrics.add(metric);
+        }
+
+        int rank = 1;
+        for (String corpusId : rankedIds) {
+            Integer grade = judgements.get(corpusId);
+            boolean judged = grade != null;
+            int g = judged ? grade : 0;
+            for (Metric metric : metrics) {
+                if (rank <= metric.cut) {
+                    metric.accept(rank, g, judged);
+                }
+            }
+            rank++;
+        }
+
+        Map<String, Float> values = new LinkedHashMap<>();
+        for (Metric metric : metrics) {
+            values.put(metric.name, metric.value(rank - 1));
+        }
+        return values;
+    }
+
+    private static Metric createMetric(String name) {
+        String base = name;
+        int cut = NO_CUT;
+        int at = name.indexOf('@');
+        if (at >= 0) {
+            base = name.substring(0, at);
+            try {
+                cut = Integer.parseInt(name.substring(at + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Corte no válido en la métrica " + name);
+            }
+            if (cut <= 0) {
+                throw new IllegalArgumentException("Corte no válido en la métrica " + name);
+            }
+        }
+
+        switch (base) {
+            case "p":
+                return new Precision(name, cut);
+            case "r":
+                return new Recall(name, cut);
+            case "rr":
+                return new ReciprocalRank(name, cut);
+            case "ap":
+                return new AveragePrecision(name, cut);
+            case "ndcg":
+                return new NDCG(name, cut);
+            case "rprec":
+                return new RPrecision(name);
+            case "bpref":
+                return new Bpref(name);
+            case "infap":
+                return new InfAP(name);
+            case "success":
+                if (cut == NO_CUT) {
+                    throw new IllegalArgumentException("La métrica success necesita un corte (success@k)");
+                }
+                return new Success(name, cut);
+            default:
+                throw new IllegalArgumentException("Métrica no soportada: " + name);
+        }
+    }
+
+    /**
+     * Estadísticas de los juicios de una query que necesitan algunas métricas antes de recorrer la lista.
+     */
+    private static class Judgements {
+        private final int numRelevant;
+        private final int numNonRelevant;
+        private final int[] idealGrades;
+
+        Judgements(Map<String, Integer> judgements) {
+            int relevant = 0;
+            int nonRelevant = 0;
+            int[] grades = new int[judgements.size()];
+            for (int grade : judgements.values()) {
+                if (grade > 0) {
+                    grades[relevant++] = grade;
+                } else {
+                    nonRelevant++;
+                }
+            }
+            this.numRelevant = relevant;
+            this.numNonRelevant = nonRelevant;
+            this.idealGrades = Arrays.copyOf(grades, relevant);
+            Arrays.sort(this.idealGrades);
+        }
+    }
+
+    /**
+     * Métrica acumulativa: recibe los documentos en orden de ranking (sólo hasta su corte) y devuelve el valor final.
+     */
+    private abstract static class Metric {
+        final String name;
+        final int cut;
+        int numRelevant;
+
+        Metric(String name, int cut) {
+            this.name = name;
+            this.cut = cut;
+        }
+
+        void start(Judgements j) {
+            this.numRelevant = j.numRelevant;
+        }
+
+        abstract void accept(int rank, int grade, boolean judged);
+
+        abstract float value(int retrieved);
+    }
+
+    private static class Precision extends Metric {
+        private int relevantHits;
+
+        Precision(String name, int cut) {
+            super(name, cut);
+        }
+
+        void accept(int rank, int grade, boolean judged) {
+            if (grade > 0) relevantHits++;
+        }
+
+        float value(int retrieved) {
+            int denominator = cut == NO_CUT ? retrieved : cut;
+            return denominator > 0 ? (float) relevantHits / denominator : 0.0f;
+        }
+    }
+
+    private static class Recall extends Metric {
+        private int relevantHits;
+
+        Recall(String name, int cut) {
+            super(name, cut);
+        }
+
+        void accept(int rank, int grade, boolean judged) {
+            if (grade > 0) relevantHits++;
+        }
+
+        float value(int retrieved) {
+            return numRelevant > 0 ? (float) relevantHits / numRelevant : 0.0f;
+        }
+    }
+
+    private static class ReciprocalRank extends Metric {
+        private float rr;
+
+        ReciprocalRank(String name, int cut) {
+            super(name, cut);
+        }
+
+        void accept(int rank, int grade, boolean judged) {
+            if (grade > 0 && rr == 0.0f) rr = 1.0f / rank;
+        }
+
+        float value(int retrieved) {
+            return rr;
+        }
+    }
+
+    private static class AveragePrecision extends Metric {
+        private int relevantHits;
+        private float sum;
+
+        AveragePrecision(String name, int cut) {
+            super(name, cut);
+        }
+
+        void accept(int rank, int grade, boolean judged) {
+            if (grade > 0) {
+                relevantHits++;
+                sum += (float) relevantHits / rank;
+            }
+        }
+
+        float value(int retrieved) {
+            return numRelevant > 0 ? sum / numRelevant : 0.0f;
+        }
+    }
+
+    /**
+     * nDCG con ganancia lineal igual al grado de relevancia de test.tsv y descuento log2(rank + 1), como trec_eval.
+     */
+    private static class NDCG extends Metric {
+        private double dcg;
+        private double idcg;
+
+        NDCG(String name, int cut) {
+            super(name, cut);
+        }
+
+        void start(Judgements j) {
+            super.start(j);
+            // idealGrades está en orden ascendente
+            int n = Math.min(cut, j.idealGrades.length);
+            for (int i = 0; i < n; i++) {
+                idcg += j.idealGrades[j.idealGrades.length - 1 - i] / log2(i + 2);
+            }
+        }
+
+        void accept(int rank, int grade, boolean judged) {
+            if (grade > 0) dcg += grade / log2(rank + 1);
+        }
+
+        float value(int retrieved) {
+            return idcg > 0 ? (float) (dcg / idcg) : 0.0f;
+        }
+
+        private static double log2(int x) {
+            return Math.log(x) / Math.log(2);
+        }
+    }
+
+    /**
+     * Precisión en el rango R, siendo R el número de documentos relevantes de la query.
+     */
+    private static class RPrecision extends Metric {
+        private int relevantHits;
+
+        RPrecision(String name) {
+            super(name, NO_CUT);
+        }
+
+        void accept(int rank, int grade, boolean judged) {
+            if (grade > 0 && rank <= numRelevant) relevantHits++;
+        }
+
+        float value(int retrieved) {
+            return numRelevant > 0 ? (float) relevantHits / numRelevant : 0.0f;
+        }
+    }
+
+    /**
+     * bpref (Buckley y Voorhees, 2004): penaliza cada relevante recuperado por los no relevantes
+     * juzgados que aparecen por encima. Los documentos sin juicio se ignoran.
+     */
+    private static class Bpref extends Metric {
+        private int numNonRelevant;
+        private int nonRelevantAbove;
+        private float sum;
+
+        Bpref(String name) {
+            super(name, NO_CUT);
+        }
+
+        void start(Judgements j) {
+            super.start(j);
+            this.numNonRelevant = j.numNonRelevant;
+        }
+
+        void accept(int rank, int grade, boolean judged) {
+            if (grade > 0) {
+                int denominator = Math.min(numRelevant, numNonRelevant);
+                if (denominator == 0) {
+                    sum += 1.0f;
+                } else {
+                    sum += 1.0f - (float) Math.min(nonRelevantAbove, numRelevant) / denominator;
+                }
+            } else if (judged) {
+                nonRelevantAbove++;
+            }
+        }
+
+        float value(int retrieved) {
+            return numRelevant > 0 ? sum / numRelevant : 0.0f;
+        }
+    }
+
+    /**
+     * infAP (Yilmaz y Aslam, 2006), como en trec_eval: AP estimada cuando los juicios son una muestra del pool. La
+     * precisión en el rango k de cada relevante se estima con la fracción de juzgados relevantes entre los juzgados
+     * por encima, ponderada por la fracción de documentos de encima que están juzgados. Los documentos sin juicio
+     * cuentan como fuera del pool (test.tsv no distingue los del pool sin juzgar).
+     */
+    private static class InfAP extends Metric {
+        private static final double EPSILON = 0.00001;
+        private int relevantAbove;
+        private int nonRelevantAbove;
+        private double sum;
+
+        InfAP(String name) {
+            super(name, NO_CUT);
+        }
+
+        void accept(int rank, int grade, boolean judged) {
+            if (grade > 0) {
+                if (rank == 1) {
+                    sum += 1.0;
+                } else {
+                    int above = rank - 1;
+                    sum += 1.0 / rank + ((double) above / rank)
+                            * ((double) (relevantAbove + nonRelevantAbove) / above)
+                            * ((relevantAbove + EPSILON) / (relevantAbove + nonRelevantAbove + 2 * EPSILON));
+                }
+                relevantAbove++;
+            } else if (judged) {
+                nonRelevantAbove++;
+            }
+        }
+
+        float value(int retrieved) {
+            return numRelevant > 0 ? (float) (sum / numRelevant) : 0.0f;
+        }
+    }
+
+    private static class Success extends Metric {
+        private boolean found;
+
+        Success(String name, int cut) {
+            super(name, cut);
+        }
+
+        void accept(int rank, int grade, boolean judged) {
+            if (grade > 0) found = true;
+        }
+
+        float value(int retrieved) {
+            return found ? 1.0f : 0.0f;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.sandbox.search.CombinedFieldQuery;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Queries sobre varios campos con un peso por campo (-fields title^2,text^1), de dos formas:
+ *  - bm25f: un CombinedFieldQuery por término. Las frecuencias del término en cada campo se suman multiplicadas por
+ *    su peso y el documento se puntúa una sola vez con BM25 sobre esa frecuencia y la longitud combinada (BM25F).
+ *    Sólo funciona con BM25Similarity y los pesos tienen que ser mayores o iguales que 1.
+ *  - boost: MultiFieldQueryParser con los pesos como boosts, una disyunción de las queries de cada campo. Sirve
+ *    con cualquier similitud.
+ * En la especificación de TrainingTestTrecCovid cada campo puede llevar varios pesos separados por '/'
+ * (title^1/2/4,text^1) para barrer todas las combinaciones en el entrenamiento.
+ */
+public class MultiFieldQueries {
+
+    static final String USAGE = "campo^peso,campo^peso,...";
+
+    public enum Mode {
+        BM25F, BOOST;
+
+        static Mode fromName(String name) {
+            switch (name.toLowerCase()) {
+                case "bm25f":
+                    return BM25F;
+                case "boost":
+                    return BOOST;
+                default:
+                    throw new IllegalArgumentException("Modo multicampo no válido: " + name + " (bm25f|boost)");
+            }
+        }
+    }
+
+    /**
+     * Pesos de una especificación sin barrido, en el orden en que aparecen los campos.
+     */
+    public static Map<String, Float> parse(String spec) {
+        List<Map<String, Float>> weights = parseSweep(spec);
+        if (weights.size() != 1) {
+            throw new IllegalArgumentException("Sólo se admite un peso por campo: " + spec);
+        }
+        return weights.get(0);
+    }
+
+    /**
+     * Todas las combinaciones de pesos de la especificación (producto de los pesos de cada campo).
+     */
+    public static List<Map<String, Float>> parseSweep(String spec) {
+        List<Map<String, Float>> combinations = new ArrayList<>();
+        combinations.add(new LinkedHashMap<>());
+        for (String fieldSpec : spec.split(",")) {
+            String[] parts = fieldSpec.trim().split("\\^");
+            if (parts.length > 2 || parts[0].isEmpty()) {
+                throw new IllegalArgumentException("Campo no válido: " + fieldSpec + " (" + USAGE + ")");
+            }
+            List<Float> values = new ArrayList<>();
+            for (String value : (parts.length == 2 ? parts[1] : "1").split("/")) {
+                try {
+                    values.add(Float.parseFloat(value));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Peso no válido para " + parts[0] + ": " + value);
+                }
+            }
+            List<Map<String, Float>> next = new ArrayList<>();
+            for (Map<String, Float> combination : combinations) {
+                for (float value : values) {
+                    Map<String, Float> weights = new LinkedHashMap<>(combination);
+                    weights.put(parts[0], value);
+                    next.add(weights);
+                }
+            }
+            combinations = next;
+        }
+        return combinations;
+    }
+
+    public static String label(Map<String, Float> weights) {
+        StringJoiner label = new StringJoiner(" ");
+        for (Map.Entry<String, Float> entry : weights.entrySet()) {
+            label.add(entry.getKey() + "^" + entry.getValue());
+        }
+        return label.toString();
+    }
+
+    /**
+     * Parte del nombre de los ficheros de resultados: modo y pesos (p.ej. bm25f.title2.0.text1.0).
+     */
+    public static String fileTag(Map<String, Float> weights, Mode mode) {
+        StringBuilder tag = new StringBuilder(mode.name().toLowerCase());
+        for (Map.Entry<String, Float> entry : weights.entrySet()) {
+            tag.append('.').append(entry.getKey()).append(entry.getValue());
+        }
+        return tag.toString();
+    }
+
+    /**
+     * Queries multicampo de los ids entre firstQuery y lastQuery. Los campos con peso 0 no se consultan.
+     */
+    public static Map<Integer, Query> getQueries(int firstQuery, int lastQuery, Map<String, Float> weights,
+                                                 Analyzer analyzer, Mode mode) {
+        Map<String, Float> fields = queryFields(weights, mode);
+        MultiFieldQueryParser queryParser = new MultiFieldQueryParser(fields.keySet().toArray(new String[0]), analyzer, fields);
+        Map<Integer, Query> queries = new HashMap<>();
+        for (Map.Entry<Integer, String> entry : QueryUtils.getQueryTexts(firstQuery, lastQuery).entrySet()) {
+            try {
+                queries.put(entry.getKey(), mode == Mode.BM25F ? combinedFieldQuery(entry.getValue(), fields, analyzer)
+                        : queryParser.parse(entry.getValue().trim()));
+            } catch (ParseException | IOException e) {
+                System.err.println("Error al parsear la consulta: " + e.getMessage());
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Campos que se consultan, los de peso mayor que 0, comprobando que los pesos son válidos para el modo.
+     */
+    static Map<String, Float> queryFields(Map<String, Float> weights, Mode mode) {
+        Map<String, Float> fields = new LinkedHashMap<>();
+        for (Map.Entry<String, Float> entry : weights.entrySet()) {
+            if (entry.getValue() < 0 || (mode == Mode.BM25F && entry.getValue() > 0 && entry.getValue() < 1)) {
+                throw new IllegalArgumentException("Peso no válido para " + entry.getKey() + ": " + entry.getValue()
+                        + (mode == Mode.BM25F ? " (con bm25f, 0 o mayor o igual que 1)" : " (mayor o igual que 0)"));
+            }
+            if (entry.getValue() > 0) {
+                fields.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (fields.isEmpty()) {
+            throw new IllegalArgumentException("Todos los campos tienen peso 0");
+        }
+        return fields;
+    }
+
+    /**
+     * Query de un término ya analizado sobre todos los campos con sus pesos: un CombinedFieldQuery con bm25f o una
+     * disyunción de TermQuery con boosts, como las que crea MultiFieldQueryParser, con boost.
+     */
+    static Query termQuery(BytesRef term, Map<String, Float> fields, Mode mode) {
+        if (mode == Mode.BM25F) {
+            CombinedFieldQuery.Builder combined = new CombinedFieldQuery.Builder();
+            for (Map.Entry<String, Float> field : fields.entrySet()) {
+                combined.addField(field.getKey(), field.getValue());
+            }
+            return combined.addTerm(term).build();
+        }
+        BooleanQuery.Builder query = new BooleanQuery.Builder();
+        for (Map.Entry<String, Float> field : fields.entrySet()) {
+            query.add(new BoostQuery(new TermQuery(new Term(field.getKey(), term)), field.getValue()),
+                    BooleanClause.Occur.SHOULD);
+        }
+        return query.build();
+    }
+
+    /**
+     * Disyunción de un CombinedFieldQuery por término. El texto se analiza con el analyzer de cada campo, así que con
+     * analyzers distintos por campo se buscan todos los términos que produce alguno de ellos.
+     */
+    static Query combinedFieldQuery(String text, Map<String, Float> fields, Analyzer analyzer) throws IOException {
+        Set<BytesRef> terms = new LinkedHashSet<>();
+        for (String field : fields.keySet()) {
+            try (TokenStream tokens = analyzer.tokenStream(field, text)) {
+                TermToBytesRefAttribute term = tokens.addAttribute(TermToBytesRefAttribute.class);
+                tokens.reset();
+                while (tokens.incrementToken()) {
+                    terms.add(BytesRef.deepCopyOf(term.getBytesRef()));
+                }
+                tokens.end();
+            }
+        }
+
+        BooleanQuery.Builder query = new BooleanQuery.Builder();
+        for (BytesRef term : terms) {
+            query.add(termQuery(term, fields, Mode.BM25F), BooleanClause.Occur.SHOULD);
+        }
+        return query.build();
+    }
+}
@@ -0,0 +1,73 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * VectorOps con la Vector API (jdk.incubator.vector): las filas se leen directamente del buffer mapeado en bloques
+ * del tamaño preferido por la CPU y se acumulan con FMA. Sólo se carga desde VectorOps.create().
+ */
+class PanamaVectorOps implements VectorOps {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public float dotProduct(float[] query, ByteBuffer matrix, int offset) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        int bound = SPECIES.loopBound(query.length);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector q = FloatVector.fromArray(SPECIES, query, i);
+            FloatVector v = FloatVector.fromByteBuffer(SPECIES, matrix, offset + i * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+            acc = q.fma(v, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            sum += query[i] * matrix.getFloat(offset + i * Float.BYTES);
+        }
+        return sum;
+    }
+
+    @Override
+    public float squareDistance(float[] query, ByteBuffer matrix, int offset) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        int bound = SPECIES.loopBound(query.length);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector q = FloatVector.fromArray(SPECIES, query, i);
+            FloatVector v = FloatVector.fromByteBuffer(SPECIES, matrix, offset + i * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+            FloatVector diff = q.sub(v);
+            acc = diff.fma(diff, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            float d = query[i] - matrix.getFloat(offset + i * Float.BYTES);
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    @Override
+    public float squareNorm(ByteBuffer matrix, int offset, int dimension) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        int bound = SPECIES.loopBound(dimension);
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector v = FloatVector.fromByteBuffer(SPECIES, matrix, offset + i * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+            acc = v.fma(v, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < dimension; i++) {
+            float v = matrix.getFloat(offset + i * Float.BYTES);
+            sum += v * v;
+        }
+        return sum;
+    }
+
+    @Override
+    public String name() {
+        return "panama-" + SPECIES.vectorBitSize() + "bit";
+    }
+}
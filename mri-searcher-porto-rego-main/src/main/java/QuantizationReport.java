@@ -0,0 +1,259 @@
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Compara un índice con vectores float (IndexTrecCovid -embeddings) con otro cuantizado a int8
+ * (IndexTrecCovid -embeddings -quantize int8): tamaño de los ficheros de vectores y del grafo HNSW, latencia de las
+ * queries kNN, recall@cut según los juicios de relevancia y solapamiento del top-k con el del índice float.
+ * Con -rescore se evalúa también el índice int8 reordenando los candidatos con los vectores float, que el índice
+ * int8 sólo tiene si se creó con -keepRaw.
+ */
+public class QuantizationReport {
+
+    public static void main(String[] args) {
+        String usage = "QuantizationReport -float <index_directory> -int8 <index_directory>"
+                + " -embeddings <queries.fvecs|queries.npy> [-cut <n>] [-top <m>] [-queries all | <int1> | <int1-int2>]"
+                + " [-rescore <candidates>] [-warmup <n>] [-out <file.csv>]";
+
+        String floatIndex = null;
+        String int8Index = null;
+        String embeddingsPath = null;
+        int cut = 10;
+        int topDocs = 50;
+        int firstQuery = 1;
+        int lastQuery = 50;
+        int rescoreCandidates = 0;
+        int warmup = 1;
+        String outFile = "quantization.report.csv";
+
+        for (int i = 0; i < args.length; i++) {
+            try {
+                switch (args[i]) {
+                    case "-float":
+                        floatIndex = args[++i];
+                        break;
+                    case "-int8":
+                        int8Index = args[++i];
+                        break;
+                    case "-embeddings":
+                        embeddingsPath = args[++i];
+                        break;
+                    case "-cut":
+                        cut = Integer.parseInt(args[++i]);
+                        break;
+                    case "-top":
+                        topDocs = Integer.parseInt(args[++i]);
+                        break;
+                    case "-queries":
+                        String queryOption = args[++i];
+                        if (!queryOption.equals("all")) {
+                            firstQuery = Integer.parseInt(queryOption);
+                            lastQuery = firstQuery;
+                            if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+                                lastQuery = Integer.parseInt(args[++i]);
+                            }
+                        }
+                        break;
+                    case "-rescore":
+                        rescoreCandidates = Integer.parseInt(args[++i]);
+                        break;
+                    case "-warmup":
+                        warmup = Integer.parseInt(args[++i]);
+                        break;
+                    case "-out":
+                        outFile = args[++i];
+                        break;
+                    default:
+                        System.err.println("Uso incorrecto: " + usage);
+                        System.exit(1);
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Uso incorrecto: " + usage);
+                System.exit(1);
+            }
+        }
+
+        if (floatIndex == null || int8Index == null || embeddingsPath == null) {
+            System.err.println("Uso incorrecto: " + usage);
+            System.exit(1);
+        }
+
+        Embeddings queryEmbeddings = null;
+        try {
+            queryEmbeddings = Embeddings.load(embeddingsPath);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("No se pudieron cargar los embeddings: " + e.getMessage());
+            System.exit(1);
+        }
+
+        int k = Math.max(topDocs, cut);
+        MetricEngine engine = MetricEngine.withDefaults(cut, null);
+        SearchStats stats = new SearchStats();
+        List<Row> rows = new ArrayList<>();
+
+        try (Directory floatDir = FSDirectory.open(Paths.get(floatIndex));
+             Directory int8Dir = FSDirectory.open(Paths.get(int8Index));
+             IndexReader floatReader = DirectoryReader.open(floatDir);
+             IndexReader int8Reader = DirectoryReader.open(int8Dir)) {
+
+            if (VectorQuantization.readScale(int8Reader) == null) {
+                System.err.println(int8Index + " no es un índice con vectores cuantizados a int8");
+                System.exit(1);
+            }
+
+            IndexSearcher floatSearcher = new IndexSearcher(floatReader);
+            IndexSearcher int8Searcher = new IndexSearcher(int8Reader);
+
+            Map<Integer, Query> floatQueries =
+                    QueryUtils.getVectorQueries(firstQuery, lastQuery, queryEmbeddings, k, floatReader, 0);
+            List<QueryResults> baseline = run("float32", floatSearcher, floatQueries, cut, topDocs, engine, stats, warmup);
+            rows.add(new Row("float32", indexSizes(floatDir), baseline, baseline, cut, stats));
+
+            Map<Integer, Query> int8Queries =
+                    QueryUtils.getVectorQueries(firstQuery, lastQuery, queryEmbeddings, k, int8Reader, 0);
+            List<QueryResults> int8 = run("int8", int8Searcher, int8Queries, cut, topDocs, engine, stats, warmup);
+            Map<String, Long> int8Sizes = indexSizes(int8Dir);
+            rows.add(new Row("int8", int8Sizes, int8, baseline, cut, stats));
+
+            if (rescoreCandidates > 0) {
+                String label = "int8.rescore." + rescoreCandidates;
+                Map<Integer, Query> rescoredQueries = QueryUtils.getVectorQueries(firstQuery, lastQuery, queryEmbeddings,
+                        k, int8Reader, rescoreCandidates);
+                List<QueryResults> rescored = run(label, int8Searcher, rescoredQueries, cut, topDocs, engine, stats, warmup);
+                rows.add(new Row(label, int8Sizes, rescored, baseline, cut, stats));
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.out.printf(Locale.ROOT, "%n%-20s %12s %12s %12s %12s %10s %10s %10s %12s%n", "Índice", ".vec (MB)",
+                ".vex (MB)", "vector_raw", "Total (MB)", "Media (ms)", "p95 (ms)", "Recall@" + cut, "Solape@" + cut);
+        for (Row row : rows) {
+            System.out.printf(Locale.ROOT, "%-20s %12.2f %12.2f %12.2f %12.2f %10.3f %10.3f %10.4f %12.4f%n", row.label,
+                    mb(row.sizes.get("vec")), mb(row.sizes.get("vex")), mb(row.sizes.get("dvd")), mb(row.sizes.get("total")),
+                    row.meanMs, row.p95Ms, row.recall, row.overlap);
+        }
+        System.out.println("\nEn memoria deben estar .vec (vectores) y .vex (grafo HNSW). Los vectores float del índice int8"
+                + " (con -keepRaw) van en doc values (vector_raw) y sólo se leen para reordenar los candidatos.");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(outFile), StandardCharsets.UTF_8)) {
+            writer.write("Index,VecBytes,VexBytes,VemBytes,DocValuesBytes,TotalBytes,MeanMs,P95Ms,Recall@" + cut
+                    + ",Overlap@" + cut + "\n");
+            for (Row row : rows) {
+                writer.write(String.format(Locale.ROOT, "%s,%d,%d,%d,%d,%d,%.3f,%.3f,%.4f,%.4f\n", row.label,
+                        row.sizes.getOrDefault("vec", 0L), row.sizes.getOrDefault("vex", 0L),
+                        row.sizes.getOrDefault("vem", 0L), row.sizes.getOrDefault("dvd", 0L), row.sizes.get("total"),
+                        row.meanMs, row.p95Ms, row.recall, row.overlap));
+            }
+            System.out.println("Resultados escritos en " + outFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static List<QueryResults> run(String label, IndexSearcher searcher, Map<Integer, Query> queries, int cut,
+                                          int topDocs, MetricEngine engine, SearchStats stats, int warmup) {
+        for (int i = 0; i < warmup; i++) {
+            QueryUtils.evaluateQueries(searcher, queries, cut, topDocs, engine, null);
+        }
+        stats.setLabel(label);
+        List<QueryResults> results = QueryUtils.evaluateQueries(searcher, queries, cut, topDocs, engine, stats);
+        System.out.println(label + ": " + stats.summary(label));
+        return results;
+    }
+
+    /**
+     * Bytes del último commit por extensión de fichero, más el total ("total"). Los ficheros dentro de los
+     * compound files (.cfs) se cuentan por separado con su propia extensión.
+     */
+    static Map<String, Long> indexSizes(Directory directory) throws IOException {
+        Map<String, Long> sizes = new TreeMap<>();
+        long total = 0;
+        SegmentInfos infos = SegmentInfos.readLatestCommit(directory);
+        total += directory.fileLength(infos.getSegmentsFileName());
+        for (SegmentCommitInfo info : infos) {
+            for (String file : info.files()) {
+                long length = directory.fileLength(file);
+                total += length;
+                if (file.endsWith(".cfs")) {
+                    try (Directory compound = info.info.getCodec().compoundFormat()
+                            .getCompoundReader(directory, info.info, IOContext.READONCE)) {
+                        for (String inner : compound.listAll()) {
+                            sizes.merge(IndexFileNames.getExtension(inner), compound.fileLength(inner), Long::sum);
+                        }
+                    }
+                } else {
+                    sizes.merge(IndexFileNames.getExtension(file), length, Long::sum);
+                }
+            }
+        }
+        sizes.put("total", total);
+        return sizes;
+    }
+
+    private static double mb(Long bytes) {
+        return bytes == null ? 0 : bytes / (1024.0 * 1024.0);
+    }
+
+    private static class Row {
+        final String label;
+        final Map<String, Long> sizes;
+        final double meanMs;
+        final double p95Ms;
+        final double recall;
+        final double overlap;
+
+        Row(String label, Map<String, Long> sizes, List<QueryResults> results, List<QueryResults> baseline, int cut,
+            SearchStats stats) {
+            this.label = label;
+            this.sizes = sizes;
+
+            long[] latencies = stats.getRecords().stream().filter(r -> r.label.equals(label))
+                    .mapToLong(r -> r.searchNanos).sorted().toArray();
+            this.meanMs = latencies.length == 0 ? 0 : Arrays.stream(latencies).average().orElse(0) / 1e6;
+            this.p95Ms = latencies.length == 0 ? 0 : latencies[Math.min(latencies.length - 1,
+                    (int) Math.ceil(0.95 * latencies.length) - 1)] / 1e6;
+
+            Map<Integer, List<String>> reference = new HashMap<>();
+            for (QueryResults r : baseline) {
+                reference.put(r.getId(), r.getCorpusIds());
+            }
+            double recallSum = 0;
+            double overlapSum = 0;
+            for (QueryResults r : results) {
+                recallSum += r.getRecall();
+                List<String> expected = reference.getOrDefault(r.getId(), List.of());
+                Set<String> top = new HashSet<>(expected.subList(0, Math.min(cut, expected.size())));
+                List<String> ids = r.getCorpusIds();
+                int common = 0;
+                for (String id : ids.subList(0, Math.min(cut, ids.size()))) {
+                    if (top.contains(id)) {
+                        common++;
+                    }
+                }
+                overlapSum += top.isEmpty() ? 1 : (double) common / top.size();
+            }
+            this.recall = results.isEmpty() ? 0 : recallSum / results.size();
+            this.overlap = results.isEmpty() ? 0 : overlapSum / results.size();
+        }
+    }
+}
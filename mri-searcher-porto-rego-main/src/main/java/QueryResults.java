@@ -1,22 +1,27 @@
-import org.apache.lucene.document.Document;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.ScoreDoc;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.*;
 
 public class QueryResults {
 
-    private static final Map<Integer, List<String>> relevantDocs;
+    // id de query -> (id de corpus -> grado de relevancia de test.tsv)
+    private static final Map<Integer, Map<String, Integer>> relevantDocs;
+    private static final List<String> ID_FIELD = List.of("_id");
+    private static final List<String> INFO_FIELDS = List.of("_id", "title", "text", "url", "pubmed_id");
     private final int id;
     private final String query;
-    private final PriorityQueue<Map.Entry<ScoreDoc, Boolean>> topDocs;
-    private float precision;
-    private float recall;
-    private float averagePrecision;
-    private float reciprocalRank;
+    private final int cut;
+    private final List<Map.Entry<ScoreDoc, Boolean>> topDocs;
+    private final List<String> corpusIds;
+    private Map<String, Float> metrics;
+    private long loadNanos;
 
     public int getId() {
         return id;
@@ -28,13 +33,23 @@ public class QueryResults {
     }
     
     public QueryResults(int id, String query, ScoreDoc[] hits, int cut, IndexSearcher searcher){
+        this(id, query, hits, cut, searcher, MetricEngine.withDefaults(cut, null));
+    }
+
+    public QueryResults(int id, String query, ScoreDoc[] hits, int cut, IndexSearcher searcher, MetricEngine engine){
         this.id = id;
         this.query = query;
-        Comparator<Map.Entry<ScoreDoc, Boolean>> scoreComparator = (entry1, entry2) -> Float.compare(entry2.getKey().score, entry1.getKey().score);
-        this.topDocs = new PriorityQueue<>(scoreComparator);
+        this.cut = cut;
+        // Los hits de Lucene ya vienen ordenados por score, así que se conserva ese orden
+        this.topDocs = new ArrayList<>(hits.length);
+        this.corpusIds = new ArrayList<>(hits.length);
 
         createTopDocs(hits, searcher);
-        calculateMetrics(cut);
+        calculateMetrics(engine);
+    }
+
+    public static Map<String, Integer> getJudgements(int queryId) {
+        return relevantDocs.getOrDefault(queryId, Collections.emptyMap());
     }
 
     private static void loadRelevantDocs(){
@@ -48,12 +63,11 @@ public class QueryResults {
                 int score = Integer.parseInt(parts[2]);
 
                 if(!relevantDocs.containsKey(currentQueryId)){
-                    relevantDocs.put(currentQueryId, new ArrayList<>());
-                }
-                if (score != 0) {
-                    String corpusId = parts[1];
-                    relevantDocs.get(currentQueryId).add(corpusId);
+                    relevantDocs.put(currentQueryId, new HashMap<>());
                 }
+                // Se guardan también los juicios con grado 0 (juzgados no relevantes), que usan bpref e infAP
+                String corpusId = parts[1];
+                relevantDocs.get(currentQueryId).put(corpusId, score);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -63,20 +77,29 @@ public class QueryResults {
 
     private void createTopDocs(ScoreDoc[] hits, IndexSearcher searcher){
 
-        Document doc = null;
+        Map<String, Integer> judgements = getJudgements(id);
+
+        // Sólo hace falta el _id de cada hit para evaluar
+        int[] docIds = new int[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            docIds[i] = hits[i].doc;
+        }
+        Map<Integer, Map<String, String>> ids = null;
+        long start = System.nanoTime();
+        try {
+            ids = new StoredFieldLoader(searcher.getIndexReader(), ID_FIELD).load(docIds);
+        } catch (IOException e) {
+            // No se sale de la JVM: QueryResults también se crea desde SearchServer, que debe seguir atendiendo
+            throw new UncheckedIOException("No se pudieron leer los _id de los hits de la query " + id, e);
+        }
+        this.loadNanos = System.nanoTime() - start;
 
         for (int i = 0; i < hits.length; i++) {
             ScoreDoc hit = hits[i];
-            int docId = hit.doc;
-            try {
-                doc = searcher.storedFields().document(docId);
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
-            String corpusId = doc.get("_id");
+            String corpusId = ids.get(hit.doc).get("_id");
             Map.Entry<ScoreDoc, Boolean> entry;
-            if (relevantDocs.get(id).contains(corpusId)) {
+            corpusIds.add(corpusId);
+            if (judgements.getOrDefault(corpusId, 0) > 0) {
                 entry = new AbstractMap.SimpleEntry<>(hit, true);
             }
             else{
@@ -86,89 +109,66 @@ public class QueryResults {
         }
     }
 
-    private void calculateMetrics(int cut){
-
-        int numRelevantDocs = relevantDocs.get(id).size();
-
-        int trueHits = 0; // Contador de documentos relevantes recuperados
-
-        float precision = 0.0f; // Precisión
-        float recall = 0.0f; // Sensibilidad
-        float rr = 0.0f; // Reciprocal Rank
-        float ap = 0.0f; // Average Precision
-
-        int i = 0;
-
-        // Calcula RR y AP
-        for (Map.Entry<ScoreDoc, Boolean> hitInfo : topDocs) {
-
-            if(i >= cut){
-                break;
-            }
+    private void calculateMetrics(MetricEngine engine){
+        // Todas las métricas se calculan en una única pasada sobre el ranking
+        this.metrics = engine.evaluate(corpusIds, getJudgements(id));
+    }
 
-            boolean isRelevant = hitInfo.getValue();
 
-            if (isRelevant) {
-                trueHits++;
-                if (rr == 0.0f) {
-                    rr = 1.0f / (i + 1);
-                }
-                ap += (float) trueHits / (i + 1);
-            }
-            i++;
+    public String printDocInfo(IndexSearcher searcher, int numDocs){
+        StringWriter docInfo = new StringWriter();
+        try {
+            writeDocInfo(docInfo, searcher, numDocs, 0);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        return docInfo.toString();
+    }
 
-        // Calcula P@n y AP@n
-        if (trueHits > 0) {
-            precision = (float) trueHits / cut;
-            ap = ap/numRelevantDocs;
+    /**
+     * Escribe la información de los numDocs primeros hits directamente en out, documento a documento,
+     * sin construir el informe completo en memoria. Si snippetLength es mayor que 0 el texto
+     * de cada documento se trunca a esa longitud.
+     */
+    public void writeDocInfo(Writer out, IndexSearcher searcher, int numDocs, int snippetLength) throws IOException {
+        out.write("Query: ");
+        out.write(query);
+        out.write("\nTop hits:\n");
+
+        int n = Math.min(numDocs, topDocs.size());
+        int[] docIds = new int[n];
+        for (int i = 0; i < n; i++) {
+            docIds[i] = topDocs.get(i).getKey().doc;
         }
 
-        // Calcula Recall@n
-        if (numRelevantDocs > 0) {
-            recall = (float) trueHits / numRelevantDocs;
+        // Se cargan de una vez, en orden de docID, sólo los campos que se muestran
+        Map<Integer, Map<String, String>> documents;
+        try {
+            documents = new StoredFieldLoader(searcher.getIndexReader(), INFO_FIELDS, "text", snippetLength).load(docIds);
+        }
+        catch (IOException e){
+            System.err.println("No se pudo acceder a los documentos del índice");
+            e.printStackTrace();
+            return;
         }
 
-        this.averagePrecision = ap;
-        this.precision = precision;
-        this.recall = recall;
-        this.reciprocalRank = rr;
-    }
-
-
-    public String printDocInfo(IndexSearcher searcher, int numDocs){
-        StringBuilder docInfo = new StringBuilder("Query: " + query + "\nTop hits:\n");
-
-        int top = 1;
-
-        Iterator<Map.Entry<ScoreDoc, Boolean>> iterator = topDocs.iterator();
-        while (iterator.hasNext() && top <= numDocs) {
-            Map.Entry<ScoreDoc, Boolean> hit = iterator.next();
+        for (int top = 1; top <= n; top++) {
+            Map.Entry<ScoreDoc, Boolean> hit = topDocs.get(top - 1);
             ScoreDoc scoreDoc = hit.getKey();
             boolean isRelevant = hit.getValue();
             float score = scoreDoc.score;
-            int docId = scoreDoc.doc;
-
-            try {
-                Document document = searcher.storedFields().document(docId);
-                String id = document.get("_id");
-                String title = document.get("title");
-                String text = document.get("text");
-                String url = document.get("url");
-                String pubmedId = document.get("pubmed_id");
-                docInfo.append("Top ").append(top);
-                if(isRelevant) docInfo.append("(REL)");
-                docInfo.append(":\n");
-                docInfo.append("id: ").append(id).append("\ntitle: ").append(title).append("\ntext: ").append(text).append("\nurl: ").append(url).append("\npubmed_id: ").append(pubmedId).append("\nscore: ").append(score).append("\n\n");
-            }
-            catch (IOException e){
-                System.err.println("No se pudo acceder al documento " + docId + "del índice");
-                e.printStackTrace();
-            }
-
-            top ++;
+            Map<String, String> document = documents.get(scoreDoc.doc);
+
+            out.write("Top " + top);
+            if(isRelevant) out.write("(REL)");
+            out.write(":\n");
+            out.write("id: " + document.get("_id"));
+            out.write("\ntitle: " + document.get("title"));
+            out.write("\ntext: " + document.get("text"));
+            out.write("\nurl: " + document.get("url"));
+            out.write("\npubmed_id: " + document.get("pubmed_id"));
+            out.write("\nscore: " + score + "\n\n");
         }
-        return docInfo.toString();
     }
 
 
@@ -176,39 +176,57 @@ public class QueryResults {
         return query;
     }
 
-    public PriorityQueue<Map.Entry<ScoreDoc, Boolean>> getHits() {
+    public List<Map.Entry<ScoreDoc, Boolean>> getHits() {
         return topDocs;
     }
 
+    /**
+     * Tiempo empleado en cargar los campos almacenados necesarios para evaluar la query.
+     */
+    public long getLoadNanos() {
+        return loadNanos;
+    }
+
+    public List<String> getCorpusIds() {
+        return corpusIds;
+    }
+
+    public Map<String, Float> getMetrics() {
+        return metrics;
+    }
+
     public float getPrecision() {
-        return precision;
+        return getMetricByName("p");
     }
 
     public float getRecall() {
-        return recall;
+        return getMetricByName("r");
     }
 
     public float getAveragePrecision() {
-        return averagePrecision;
+        return getMetricByName("map");
     }
 
     public float getReciprocalRank() {
-        return reciprocalRank;
+        return getMetricByName("mrr");
     }
 
     public float getMetricByName(String name){
 
         switch(name) {
             case "p":
-                return  precision;
             case "r":
-                return recall;
+            case "ndcg":
+            case "success":
+                name = name + "@" + cut;
+                break;
             case "mrr":
-                return reciprocalRank;
+                name = "rr@" + cut;
+                break;
             case "map":
-                return averagePrecision;
-            default:
-                return -1;
+                name = "ap@" + cut;
+                break;
         }
+        return metrics.getOrDefault(name, -1.0f);
     }
 }
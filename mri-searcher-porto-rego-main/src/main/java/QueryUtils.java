@@ -1,23 +1,41 @@
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.lucene.index.*;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.*;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 
 public class QueryUtils {
 
+    // Mismo umbral de conteo exacto de hits que usa IndexSearcher.search(Query, int)
+    static final int TOTAL_HITS_THRESHOLD = 1000;
+
 
     public static Map<Integer, Query> getQueries(int firstQuery, int lastQuery, QueryParser queryParser) {
         Map<Integer, Query> queries = new HashMap<>();
 
+        for (Map.Entry<Integer, String> entry : getQueryTexts(firstQuery, lastQuery).entrySet()) {
+            Query query = parseQuery(entry.getValue(), queryParser); // Parsear la consulta
+            if (query != null) {
+                queries.put(entry.getKey(), query);
+            }
+        }
+
+        return queries;
+    }
+
+    /**
+     * Texto sin parsear (campo metadata.query) de las queries con id entre firstQuery y lastQuery.
+     */
+    public static Map<Integer, String> getQueryTexts(int firstQuery, int lastQuery) {
+        Map<Integer, String> queryTexts = new HashMap<>();
+
         try (BufferedReader reader = new BufferedReader(new FileReader("src/test/resources/queries.jsonl"))) {
             String line;
             ObjectMapper mapper = new ObjectMapper();
@@ -26,17 +44,64 @@ public class QueryUtils {
                 int id = queryNode.get("_id").asInt();
                 // Verificar si es necesario procesar la query
                 if (id >= firstQuery && id <= lastQuery) {
-                    String queryText = queryNode.get("metadata").get("query").asText();
-                    Query query = parseQuery(queryText, queryParser); // Parsear la consulta
-                    if (query != null) {
-                        queries.put(id, query);
-                    }
+                    queryTexts.put(id, queryNode.get("metadata").get("query").asText());
                 }
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
 
+        return queryTexts;
+    }
+
+    /**
+     * Queries kNN sobre IndexTrecCovid.VECTOR_FIELD a partir de los embeddings precalculados de las queries
+     * (indexados por id de query). Las queries sin embedding se omiten.
+     *
+     * Si el índice guarda los vectores cuantizados a int8, las queries se cuantizan con el mismo factor y,
+     * si rescoreCandidates es mayor que 0, se buscan rescoreCandidates candidatos que se reordenan con los vectores float.
+     */
+    public static Map<Integer, Query> getVectorQueries(int firstQuery, int lastQuery, Embeddings embeddings, int k,
+                                                       IndexReader reader, int rescoreCandidates) throws IOException {
+        Map<Integer, Query> queries = new HashMap<>();
+
+        FieldInfo fieldInfo = FieldInfos.getMergedFieldInfos(reader).fieldInfo(IndexTrecCovid.VECTOR_FIELD);
+        if (fieldInfo == null || fieldInfo.getVectorDimension() == 0) {
+            System.err.println("El índice no tiene vectores en el campo " + IndexTrecCovid.VECTOR_FIELD);
+            return queries;
+        }
+        boolean quantized = fieldInfo.getVectorEncoding() == VectorEncoding.BYTE;
+        Float scale = quantized ? VectorQuantization.readScale(reader) : null;
+        if (quantized && scale == null) {
+            System.err.println("El índice tiene vectores int8 pero no su factor de cuantización");
+            return queries;
+        }
+        if (quantized && rescoreCandidates > 0
+                && FieldInfos.getMergedFieldInfos(reader).fieldInfo(IndexTrecCovid.RAW_VECTOR_FIELD) == null) {
+            throw new IllegalArgumentException("El índice no guarda los vectores float en " + IndexTrecCovid.RAW_VECTOR_FIELD
+                    + ", necesarios para reordenar: créalo con IndexTrecCovid -quantize int8 -keepRaw");
+        }
+
+        for (int id = firstQuery; id <= lastQuery; id++) {
+            float[] vector = embeddings.get(String.valueOf(id));
+            if (vector == null) {
+                System.err.println("No hay embedding para la query " + id);
+                continue;
+            }
+            if (!quantized) {
+                queries.put(id, new KnnFloatVectorQuery(IndexTrecCovid.VECTOR_FIELD, vector, k));
+            } else if (rescoreCandidates > 0) {
+                int numCandidates = Math.max(k, rescoreCandidates);
+                Query candidates = new KnnByteVectorQuery(IndexTrecCovid.VECTOR_FIELD,
+                        VectorQuantization.quantize(vector, scale), numCandidates);
+                queries.put(id, new RescoredVectorQuery(candidates, numCandidates, vector,
+                        IndexTrecCovid.RAW_VECTOR_FIELD, fieldInfo.getVectorSimilarityFunction(), k));
+            } else {
+                queries.put(id, new KnnByteVectorQuery(IndexTrecCovid.VECTOR_FIELD,
+                        VectorQuantization.quantize(vector, scale), k));
+            }
+        }
+
         return queries;
     }
 
@@ -53,7 +118,57 @@ public class QueryUtils {
 
 
 
+    /**
+     * Etapa de expansión: cada query se sustituye por su expansión RM3, que se calcula buscando la query original con
+     * la similitud actual del searcher de rm3. Las queries que no se pueden expandir se omiten.
+     */
+    public static Map<Integer, Query> expandQueries(Map<Integer, Query> queries, Rm3 rm3, Rm3.Params params) {
+        return expandQueries(queries, rm3, params, null, null);
+    }
+
+    /**
+     * Como expandQueries, con los términos de feedback sobre los campos, pesos y modo de las queries multicampo
+     * (fieldWeights null si las queries sólo buscan en text).
+     */
+    public static Map<Integer, Query> expandQueries(Map<Integer, Query> queries, Rm3 rm3, Rm3.Params params,
+                                                    Map<String, Float> fieldWeights, MultiFieldQueries.Mode mode) {
+        Map<Integer, Query> expanded = new HashMap<>();
+        for (Map.Entry<Integer, Query> entry : queries.entrySet()) {
+            try {
+                expanded.put(entry.getKey(), rm3.expand(entry.getValue(), params, fieldWeights, mode));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return expanded;
+    }
+
     public static List<QueryResults> evaluateQueries(IndexSearcher searcher, Map<Integer, Query> queries, int cut, int topDocs) {
+        return evaluateQueries(searcher, queries, cut, topDocs, MetricEngine.withDefaults(cut, null));
+    }
+
+    public static List<QueryResults> evaluateQueries(IndexSearcher searcher, Map<Integer, Query> queries, int cut, int topDocs,
+                                                     MetricEngine engine) {
+        return evaluateQueries(searcher, queries, cut, topDocs, engine, null);
+    }
+
+    /**
+     * Evalúa las queries en orden de id. Si stats no es null se registra, para cada query, la latencia de la búsqueda,
+     * los hits puntuados, los segmentos visitados y el tiempo de carga de campos almacenados.
+     */
+    public static List<QueryResults> evaluateQueries(IndexSearcher searcher, Map<Integer, Query> queries, int cut, int topDocs,
+                                                     MetricEngine engine, SearchStats stats) {
+        return evaluateQueries(searcher, queries, cut, topDocs, engine, stats, TOTAL_HITS_THRESHOLD);
+    }
+
+    /**
+     * Como el anterior, contando exactamente los hits sólo hasta totalHitsThreshold. Pasado ese número el collector
+     * deja de contar y puede saltarse los bloques de documentos cuya puntuación máxima no llega al top (block-max
+     * WAND), con el mismo top-k. Con stats, los documentos que coinciden se cuentan aparte con IndexSearcher.count,
+     * fuera del tiempo medido, si el collector no los ha contado todos.
+     */
+    public static List<QueryResults> evaluateQueries(IndexSearcher searcher, Map<Integer, Query> queries, int cut, int topDocs,
+                                                     MetricEngine engine, SearchStats stats, int totalHitsThreshold) {
         List<QueryResults> totalResults = new ArrayList<>();
 
         List<Map.Entry<Integer, Query>> sortedEntries = new ArrayList<>(queries.entrySet());
@@ -65,18 +180,60 @@ public class QueryUtils {
 
             try {
 
-                // Realizar la búsqueda y obtener los hits
-                TopDocs topDocsResult = searcher.search(query, Math.max(topDocs, cut));
+                // Realizar la búsqueda y obtener los hits. Una sola búsqueda con la mayor profundidad
+                // necesaria sirve para todos los cortes pedidos
+                int depth = Math.max(Math.max(topDocs, cut), engine.getDepth(QueryResults.getJudgements(queryId)));
+                CountingCollector collector = new CountingCollector(TopScoreDocCollector.create(depth, totalHitsThreshold));
+                long start = System.nanoTime();
+                searcher.search(query, collector);
+                TopDocs topDocsResult = collector.topDocs();
+                long searchNanos = System.nanoTime() - start;
                 ScoreDoc[] hits = topDocsResult.scoreDocs;
 
-                QueryResults queryResults = new QueryResults(queryId, query.toString(), hits, cut, searcher);
+                QueryResults queryResults = new QueryResults(queryId, query.toString(), hits, cut, searcher, engine);
+
+                if (stats != null) {
+                    long matchedDocs = topDocsResult.totalHits.relation == TotalHits.Relation.EQUAL_TO
+                            ? topDocsResult.totalHits.value : searcher.count(query);
+                    stats.record(queryId, searchNanos, queryResults.getLoadNanos(), collector.hitsScored,
+                            topDocsResult.totalHits.value, matchedDocs, collector.segmentsVisited);
+                }
 
                 totalResults.add(queryResults);
-            } catch (IOException e) {
+            } catch (IOException | UncheckedIOException e) {
+                // Se omite la query que falla y se sigue con las demás
                 e.printStackTrace();
             }
         }
 
         return totalResults; // Retornar los resultados de las queries
     }
+
+    /**
+     * Collector que cuenta los segmentos visitados y los documentos que llegan a puntuarse.
+     */
+    static class CountingCollector extends FilterCollector {
+        int segmentsVisited = 0;
+        long hitsScored = 0;
+
+        CountingCollector(TopScoreDocCollector in) {
+            super(in);
+        }
+
+        TopDocs topDocs() {
+            return ((TopScoreDocCollector) in).topDocs();
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            segmentsVisited++;
+            return new FilterLeafCollector(super.getLeafCollector(context)) {
+                @Override
+                public void collect(int doc) throws IOException {
+                    hitsScored++;
+                    super.collect(doc);
+                }
+            };
+        }
+    }
 }
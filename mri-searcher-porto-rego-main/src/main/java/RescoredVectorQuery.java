@@ -0,0 +1,224 @@
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.search.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Query kNN en dos fases: la query de candidatos (kNN sobre los vectores int8) obtiene los candidatos y se reordenan
+ * con la similitud exacta sobre los vectores float guardados como BinaryDocValues, quedándose con los k mejores.
+ * Sólo se leen de disco los vectores float de los candidatos, que tienen que estar en el índice
+ * (IndexTrecCovid -quantize int8 -keepRaw).
+ */
+public class RescoredVectorQuery extends Query {
+
+    private final Query candidates;
+    private final int numCandidates;
+    private final float[] target;
+    private final String rawField;
+    private final VectorSimilarityFunction similarity;
+    private final int k;
+
+    public RescoredVectorQuery(Query candidates, int numCandidates, float[] target, String rawField,
+                               VectorSimilarityFunction similarity, int k) {
+        this.candidates = candidates;
+        this.numCandidates = numCandidates;
+        this.target = target;
+        this.rawField = rawField;
+        this.similarity = similarity;
+        this.k = k;
+    }
+
+    @Override
+    public Query rewrite(IndexSearcher searcher) throws IOException {
+        ScoreDoc[] hits = searcher.search(candidates, numCandidates).scoreDocs;
+
+        // Los candidatos se recorren por docID para leer los doc values de cada hoja hacia delante
+        hits = hits.clone();
+        Arrays.sort(hits, (a, b) -> Integer.compare(a.doc, b.doc));
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        int currentLeaf = -1;
+        BinaryDocValues values = null;
+        int docBase = 0;
+        for (ScoreDoc hit : hits) {
+            int leafIndex = ReaderUtil.subIndex(hit.doc, leaves);
+            if (leafIndex != currentLeaf) {
+                LeafReaderContext leaf = leaves.get(leafIndex);
+                values = leaf.reader().getBinaryDocValues(rawField);
+                docBase = leaf.docBase;
+                currentLeaf = leafIndex;
+            }
+            // Sin el vector float no se puede reordenar: mezclar scores int8 y float daría un ranking sin sentido
+            if (values == null || !values.advanceExact(hit.doc - docBase)) {
+                throw new IllegalStateException("El documento " + hit.doc + " no tiene vector float en " + rawField
+                        + ": crea el índice con -quantize int8 -keepRaw para poder reordenar");
+            }
+            hit.score = similarity.compare(target, VectorQuantization.decode(values.binaryValue()));
+        }
+
+        Arrays.sort(hits, (a, b) -> a.score != b.score ? Float.compare(b.score, a.score) : Integer.compare(a.doc, b.doc));
+        ScoreDoc[] top = Arrays.copyOf(hits, Math.min(k, hits.length));
+        return new ScoredDocsQuery(top, searcher.getIndexReader().getContext().id());
+    }
+
+    @Override
+    public String toString(String field) {
+        return "Rescored(" + candidates.toString(field) + ", " + rawField + ", k=" + k + ")";
+    }
+
+    @Override
+    public void visit(QueryVisitor visitor) {
+        candidates.visit(visitor);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!sameClassAs(other)) {
+            return false;
+        }
+        RescoredVectorQuery o = (RescoredVectorQuery) other;
+        return k == o.k && numCandidates == o.numCandidates && candidates.equals(o.candidates) && Arrays.equals(target, o.target)
+                && rawField.equals(o.rawField) && similarity == o.similarity;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), candidates, numCandidates, Arrays.hashCode(target), rawField, similarity, k);
+    }
+
+    /**
+     * Query que devuelve exactamente los documentos dados con sus scores. Sólo es válida para el lector en el que se creó.
+     */
+    private static class ScoredDocsQuery extends Query {
+        private final int[] docs;
+        private final float[] scores;
+        private final Object contextId;
+
+        ScoredDocsQuery(ScoreDoc[] hits, Object contextId) {
+            ScoreDoc[] sorted = hits.clone();
+            Arrays.sort(sorted, (a, b) -> Integer.compare(a.doc, b.doc));
+            this.docs = new int[sorted.length];
+            this.scores = new float[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                docs[i] = sorted[i].doc;
+                scores[i] = sorted[i].score;
+            }
+            this.contextId = contextId;
+        }
+
+        @Override
+        public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) {
+            if (searcher.getIndexReader().getContext().id() != contextId) {
+                throw new IllegalStateException("La query se creó para otro IndexReader");
+            }
+            return new Weight(this) {
+                @Override
+                public Explanation explain(LeafReaderContext context, int doc) {
+                    int index = Arrays.binarySearch(docs, context.docBase + doc);
+                    return index < 0 ? Explanation.noMatch("no es un vecino")
+                            : Explanation.match(boost * scores[index], "similitud reordenada con vectores float");
+                }
+
+                @Override
+                public Scorer scorer(LeafReaderContext context) {
+                    int lower = lowerBound(context.docBase);
+                    int upper = lowerBound(context.docBase + context.reader().maxDoc());
+                    if (lower == upper) {
+                        return null;
+                    }
+                    return new Scorer(this) {
+                        private int index = lower - 1;
+
+                        private final DocIdSetIterator iterator = new DocIdSetIterator() {
+                            @Override
+                            public int docID() {
+                                if (index < lower) return -1;
+                                if (index >= upper) return NO_MORE_DOCS;
+                                return docs[index] - context.docBase;
+                            }
+
+                            @Override
+                            public int nextDoc() {
+                                index++;
+                                return docID();
+                            }
+
+                            @Override
+                            public int advance(int target) {
+                                index = Math.max(index, lowerBound(context.docBase + target));
+                                return docID();
+                            }
+
+                            @Override
+                            public long cost() {
+                                return upper - lower;
+                            }
+                        };
+
+                        @Override
+                        public DocIdSetIterator iterator() {
+                            return iterator;
+                        }
+
+                        @Override
+                        public float getMaxScore(int upTo) {
+                            float max = 0;
+                            for (int i = lower; i < upper; i++) {
+                                max = Math.max(max, scores[i]);
+                            }
+                            return boost * max;
+                        }
+
+                        @Override
+                        public float score() {
+                            return boost * scores[index];
+                        }
+
+                        @Override
+                        public int docID() {
+                            return iterator.docID();
+                        }
+                    };
+                }
+
+                @Override
+                public boolean isCacheable(LeafReaderContext ctx) {
+                    return true;
+                }
+            };
+        }
+
+        // Primer índice de docs con valor >= doc
+        private int lowerBound(int doc) {
+            int index = Arrays.binarySearch(docs, doc);
+            return index >= 0 ? index : -index - 1;
+        }
+
+        @Override
+        public String toString(String field) {
+            return "ScoredDocs(" + docs.length + ")";
+        }
+
+        @Override
+        public void visit(QueryVisitor visitor) {
+            visitor.visitLeaf(this);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return sameClassAs(other) && contextId == ((ScoredDocsQuery) other).contextId
+                    && Arrays.equals(docs, ((ScoredDocsQuery) other).docs)
+                    && Arrays.equals(scores, ((ScoredDocsQuery) other).scores);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(classHash(), contextId, Arrays.hashCode(docs), Arrays.hashCode(scores));
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Escritura en streaming de los resultados de evaluación: informe txt (con copia opcional por consola),
+ * CSV de métricas y run en formato TREC ("qid Q0 docid rank score tag").
+ * Cada query se escribe según se procesa, a través de escritores con buffer.
+ */
+public class ResultsWriter implements Closeable {
+
+    private final Writer txtWriter;
+    private final Writer csvWriter;
+    private final Writer runWriter;
+    private final String runTag;
+    private final int cut;
+    private final int snippetLength;
+    private final List<String> extraMetrics;
+
+    private int numQueries = 0;
+    private float sumPrecision = 0;
+    private float sumRecall = 0;
+    private float sumAP = 0;
+    private float sumRR = 0;
+    private final float[] sumExtra;
+
+    /**
+     * @param runFile fichero de run TREC; si es null no se genera
+     * @param echo si es true el informe txt se escribe también por la salida estándar
+     * @param snippetLength longitud máxima del texto de cada documento en el informe txt; 0 para no truncar
+     */
+    public ResultsWriter(String csvFile, String txtFile, String runFile, String runTag, boolean echo,
+                         int cut, List<String> extraMetrics, int snippetLength) throws IOException {
+        this.cut = cut;
+        this.snippetLength = snippetLength;
+        this.extraMetrics = extraMetrics;
+        this.sumExtra = new float[extraMetrics.size()];
+        this.runTag = runTag;
+
+        Writer txt = Files.newBufferedWriter(Paths.get(txtFile), StandardCharsets.UTF_8);
+        this.txtWriter = echo ? new TeeWriter(txt, new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))) : txt;
+        this.csvWriter = Files.newBufferedWriter(Paths.get(csvFile), StandardCharsets.UTF_8);
+        this.runWriter = runFile == null ? null : Files.newBufferedWriter(Paths.get(runFile), StandardCharsets.UTF_8);
+
+        writeCsvHeader();
+    }
+
+    private void writeCsvHeader() throws IOException {
+        csvWriter.append("Query,");
+        csvWriter.append("P@").append(String.valueOf(cut)).append(",");
+        csvWriter.append("Recall@").append(String.valueOf(cut)).append(",");
+        csvWriter.append("RR,");
+        csvWriter.append("AP@").append(String.valueOf(cut));
+        for (String metricName : extraMetrics) {
+            csvWriter.append(",").append(metricName);
+        }
+        csvWriter.append("\n");
+    }
+
+    /**
+     * Escribe el informe de una query (sus topDocs primeros documentos y sus métricas), su fila del CSV y su run.
+     */
+    public void writeQuery(QueryResults results, IndexSearcher searcher, int topDocs) throws IOException {
+        results.writeDocInfo(txtWriter, searcher, topDocs, snippetLength);
+
+        int queryId = results.getId();
+        float precision = results.getPrecision();
+        float recall = results.getRecall();
+        float rr = results.getReciprocalRank();
+        float ap = results.getAveragePrecision();
+
+        txtWriter.write("Query Metrics:\n\n");
+        txtWriter.write("Precision@" + cut + ": " + precision + "\t"); // P@n
+        txtWriter.write("Recall@" + cut + ": " + recall + "\t"); // Recall@n
+        txtWriter.write("RR@" + cut + ": " + rr + "\t"); // RR
+        txtWriter.write("AP@" + cut + ": " + ap); // AP@n
+        for (String metricName : extraMetrics) {
+            txtWriter.write("\t" + metricName + ": " + results.getMetricByName(metricName));
+        }
+        txtWriter.write("\n\n");
+
+        csvWriter.append(String.valueOf(queryId)).append(",");
+        csvWriter.append(String.valueOf(precision)).append(","); // P@n
+        csvWriter.append(String.valueOf(recall)).append(","); // Recall@n
+        csvWriter.append(String.valueOf(rr)).append(","); // RR
+        csvWriter.append(String.valueOf(ap)); // AP@n
+        for (int j = 0; j < extraMetrics.size(); j++) {
+            float value = results.getMetricByName(extraMetrics.get(j));
+            csvWriter.append(",").append(String.valueOf(value));
+            sumExtra[j] += value;
+        }
+        csvWriter.append("\n");
+
+        if (runWriter != null) {
+            writeRun(results);
+        }
+
+        numQueries++;
+        sumPrecision += precision;
+        sumRecall += recall;
+        sumAP += ap;
+        sumRR += rr;
+    }
+
+    private void writeRun(QueryResults results) throws IOException {
+        List<Map.Entry<ScoreDoc, Boolean>> hits = results.getHits();
+        List<String> corpusIds = results.getCorpusIds();
+        for (int i = 0; i < hits.size(); i++) {
+            runWriter.append(String.valueOf(results.getId())).append(" Q0 ")
+                    .append(corpusIds.get(i)).append(' ')
+                    .append(String.valueOf(i + 1)).append(' ')
+                    .append(String.valueOf(hits.get(i).getKey().score)).append(' ')
+                    .append(runTag).append('\n');
+        }
+    }
+
+    /**
+     * Escribe las métricas medias de todas las queries escritas hasta el momento.
+     */
+    public void writeSummary() throws IOException {
+        // Calcular promedios
+        float mPrecision = sumPrecision / numQueries;
+        float mRecall = sumRecall / numQueries;
+        float mRR = sumRR / numQueries;
+        float mAP = sumAP / numQueries;
+
+        txtWriter.write("\nTotal Metrics\nMean Precision :" + mPrecision +
+                "\tMean Recall: " + mRecall +
+                "\tMAP" + mAP +
+                "\tmRR: " + mRR);
+        for (int j = 0; j < extraMetrics.size(); j++) {
+            txtWriter.write("\tMean " + extraMetrics.get(j) + ": " + (sumExtra[j] / numQueries));
+        }
+        txtWriter.write("\n");
+
+        csvWriter.append("\nTotal Metrics\n");
+        csvWriter.append("Mean Precision: ").append(String.valueOf(mPrecision)).append("\t");
+        csvWriter.append("Mean Recall: ").append(String.valueOf(mRecall)).append("\t");
+        csvWriter.append("MRR: ").append(String.valueOf(mRR)).append("\t");
+        csvWriter.append("MAP: ").append(String.valueOf(mAP)).append("\n");
+
+        // Escribir promedios
+        csvWriter.append("Promedio,");
+        csvWriter.append(String.valueOf(mPrecision)).append(",");
+        csvWriter.append(String.valueOf(mRecall)).append(",");
+        csvWriter.append(String.valueOf(mRR)).append(",");
+        csvWriter.append(String.valueOf(mAP));
+        for (int j = 0; j < extraMetrics.size(); j++) {
+            csvWriter.append(",").append(String.valueOf(sumExtra[j] / numQueries));
+        }
+        csvWriter.append("\n");
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Se cierran todos aunque alguno falle (runWriter puede ser null)
+        IOUtils.close(txtWriter, csvWriter, runWriter);
+    }
+
+    /**
+     * Writer que duplica la salida en un fichero y en la consola. Al cerrarlo sólo se cierra el fichero.
+     */
+    private static class TeeWriter extends Writer {
+        private final Writer file;
+        private final Writer console;
+
+        TeeWriter(Writer file, Writer console) {
+            this.file = file;
+            this.console = console;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            file.write(cbuf, off, len);
+            console.write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            file.write(str, off, len);
+            console.write(str, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            file.flush();
+            console.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            file.close();
+        }
+    }
+}
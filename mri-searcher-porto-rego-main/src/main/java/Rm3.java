@@ -0,0 +1,245 @@
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermVectors;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Expansión de queries con realimentación por pseudo-relevancia (RM3). Se busca la query original, con los
+ * fbDocs primeros documentos se estima un modelo de relevancia P(w|R) = sum_d P(w|d) P(d|q), con P(w|d) = tf/|d|
+ * y P(d|q) proporcional al score del documento, y se quedan sus fbTerms términos más probables. La query expandida
+ * interpola dos queries: la original, entera y con su estructura (CombinedFieldQuery, boosts por campo), con peso
+ * originalQueryWeight / |Q|, y la de feedback, con cada término pesado por P(w|R), con peso 1 - originalQueryWeight.
+ * Con una query de términos sobre un solo campo es la interpolación habitual de RM3 con P(w|Q) = tf/|Q|. Con
+ * varios campos, los términos de feedback se buscan en los mismos campos, con los mismos pesos y modo que la query.
+ *
+ * Las frecuencias de los documentos se leen de los term vectors del campo (IndexTrecCovid -termvectors), sin
+ * volver a analizar el texto almacenado. El modelo de relevancia sólo depende de la query, la similitud y fbDocs,
+ * así que se guarda en caché y los barridos de fbTerms y originalQueryWeight (o repetir la evaluación) no vuelven a
+ * buscar ni a leer term vectors. La caché es de un índice: hay que crear un Rm3 por reader.
+ */
+public class Rm3 {
+
+    static final String USAGE = "<fbDocs> <fbTerms> <originalQueryWeight>";
+
+    public static class Params {
+        final int fbDocs;
+        final int fbTerms;
+        final float originalQueryWeight;
+
+        public Params(int fbDocs, int fbTerms, float originalQueryWeight) {
+            if (fbDocs < 1 || fbTerms < 1 || originalQueryWeight < 0 || originalQueryWeight > 1) {
+                throw new IllegalArgumentException("Parámetros de RM3 no válidos: fbDocs y fbTerms tienen que ser " +
+                        "mayores que 0 y el peso de la query original estar entre 0 y 1");
+            }
+            this.fbDocs = fbDocs;
+            this.fbTerms = fbTerms;
+            this.originalQueryWeight = originalQueryWeight;
+        }
+
+        /**
+         * Todas las combinaciones de los valores dados (cada uno puede ser una lista separada por '/', p.ej. 5/10).
+         */
+        public static List<Params> parseSweep(String fbDocs, String fbTerms, String originalQueryWeight) {
+            List<Params> params = new ArrayList<>();
+            try {
+                for (String docs : fbDocs.split("/")) {
+                    for (String terms : fbTerms.split("/")) {
+                        for (String weight : originalQueryWeight.split("/")) {
+                            params.add(new Params(Integer.parseInt(docs), Integer.parseInt(terms), Float.parseFloat(weight)));
+                        }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Parámetros de RM3 no válidos: " + e.getMessage() + " (" + USAGE + ")");
+            }
+            return params;
+        }
+
+        /**
+         * Etiqueta sin comas ni espacios, para nombres de fichero y columnas de CSV (p.ej. rm3.10.10.0.5).
+         */
+        public String label() {
+            return "rm3." + fbDocs + "." + fbTerms + "." + originalQueryWeight;
+        }
+    }
+
+    // Modelo de relevancia completo, con los términos ordenados de mayor a menor probabilidad
+    private static class FeedbackModel {
+        final BytesRef[] terms;
+        final double[] weights;
+
+        FeedbackModel(BytesRef[] terms, double[] weights) {
+            this.terms = terms;
+            this.weights = weights;
+        }
+    }
+
+    private final IndexSearcher searcher;
+    private final String field;
+    private final Map<String, FeedbackModel> cache = new ConcurrentHashMap<>();
+    private final AtomicInteger modelsBuilt = new AtomicInteger();
+    private final AtomicInteger modelsReused = new AtomicInteger();
+
+    public Rm3(IndexSearcher searcher, String field) {
+        FieldInfo info = FieldInfos.getMergedFieldInfos(searcher.getIndexReader()).fieldInfo(field);
+        if (info == null || !info.hasVectors()) {
+            throw new IllegalArgumentException("RM3 necesita term vectors en el campo " + field
+                    + ": crea el índice con IndexTrecCovid -termvectors");
+        }
+        this.searcher = searcher;
+        this.field = field;
+    }
+
+    /**
+     * Query expandida con los términos de feedback en el campo de los term vectors.
+     */
+    public Query expand(Query query, Params params) throws IOException {
+        return expand(query, params, null, null);
+    }
+
+    /**
+     * Query expandida. Si fields no es null, cada término de feedback se busca en esos campos con sus pesos y el modo
+     * dado, como los de la query original (-fields). La búsqueda inicial usa la similitud que tenga el searcher en
+     * este momento.
+     */
+    public Query expand(Query query, Params params, Map<String, Float> fields, MultiFieldQueries.Mode mode)
+            throws IOException {
+        FeedbackModel model = feedbackModel(query, params.fbDocs);
+        Map<String, Float> feedbackFields = fields == null ? null : MultiFieldQueries.queryFields(fields, mode);
+
+        BooleanQuery.Builder expanded = new BooleanQuery.Builder();
+        if (params.originalQueryWeight > 0) {
+            expanded.add(new BoostQuery(query, params.originalQueryWeight / queryLength(query)), BooleanClause.Occur.SHOULD);
+        }
+
+        // Términos del modelo de relevancia, normalizados entre los fbTerms que se usan
+        int numTerms = Math.min(params.fbTerms, model.terms.length);
+        if (params.originalQueryWeight < 1 && numTerms > 0) {
+            double total = 0;
+            for (int i = 0; i < numTerms; i++) {
+                total += model.weights[i];
+            }
+            BooleanQuery.Builder feedback = new BooleanQuery.Builder();
+            for (int i = 0; i < numTerms; i++) {
+                Query termQuery = feedbackFields == null ? new TermQuery(new Term(field, model.terms[i]))
+                        : MultiFieldQueries.termQuery(model.terms[i], feedbackFields, mode);
+                feedback.add(new BoostQuery(termQuery, (float) (model.weights[i] / total)), BooleanClause.Occur.SHOULD);
+            }
+            expanded.add(new BoostQuery(feedback.build(), 1 - params.originalQueryWeight), BooleanClause.Occur.SHOULD);
+        }
+        return expanded.build();
+    }
+
+    /**
+     * Número de términos de la query, |Q|. Una query multicampo tiene cada término en todos sus campos, así que se
+     * cuentan sólo los del campo de los term vectors (o todos, si no busca en él).
+     */
+    private int queryLength(Query query) {
+        int[] counts = new int[2];
+        query.visit(new QueryVisitor() {
+            @Override
+            public void consumeTerms(Query q, Term... terms) {
+                for (Term term : terms) {
+                    counts[0]++;
+                    if (term.field().equals(field)) {
+                        counts[1]++;
+                    }
+                }
+            }
+
+            @Override
+            public QueryVisitor getSubVisitor(BooleanClause.Occur occur, Query parent) {
+                // Las cláusulas MUST_NOT no aportan términos a la query
+                return occur == BooleanClause.Occur.MUST_NOT ? QueryVisitor.EMPTY_VISITOR : this;
+            }
+        });
+        return Math.max(1, counts[1] > 0 ? counts[1] : counts[0]);
+    }
+
+    private FeedbackModel feedbackModel(Query query, int fbDocs) throws IOException {
+        String key = query + "|" + searcher.getSimilarity() + "|" + fbDocs;
+        FeedbackModel model = cache.get(key);
+        if (model != null) {
+            modelsReused.incrementAndGet();
+            return model;
+        }
+        model = buildModel(query, fbDocs);
+        cache.put(key, model);
+        modelsBuilt.incrementAndGet();
+        return model;
+    }
+
+    private FeedbackModel buildModel(Query query, int fbDocs) throws IOException {
+        TopDocs feedbackDocs = searcher.search(query, fbDocs);
+        double scoreSum = 0;
+        for (ScoreDoc hit : feedbackDocs.scoreDocs) {
+            scoreSum += hit.score;
+        }
+
+        IndexReader reader = searcher.getIndexReader();
+        TermVectors termVectors = reader.termVectors();
+        Map<BytesRef, Double> relevance = new HashMap<>();
+        for (ScoreDoc hit : feedbackDocs.scoreDocs) {
+            Terms terms = termVectors.get(hit.doc, field);
+            if (terms == null) {
+                continue;
+            }
+            long length = 0;
+            TermsEnum termsEnum = terms.iterator();
+            while (termsEnum.next() != null) {
+                length += termsEnum.totalTermFreq();
+            }
+            double docWeight = scoreSum > 0 ? hit.score / scoreSum : 1.0 / feedbackDocs.scoreDocs.length;
+            termsEnum = terms.iterator();
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                // Los términos de una letra (iniciales, restos de puntuación) sólo meten ruido en la expansión
+                if (term.length < 2) {
+                    continue;
+                }
+                double weight = docWeight * termsEnum.totalTermFreq() / length;
+                Double previous = relevance.get(term);
+                if (previous == null) {
+                    relevance.put(BytesRef.deepCopyOf(term), weight);
+                } else {
+                    relevance.put(term, previous + weight);
+                }
+            }
+        }
+
+        List<Map.Entry<BytesRef, Double>> sorted = new ArrayList<>(relevance.entrySet());
+        sorted.sort(Map.Entry.<BytesRef, Double>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        BytesRef[] terms = new BytesRef[sorted.size()];
+        double[] weights = new double[sorted.size()];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = sorted.get(i).getKey();
+            weights[i] = sorted.get(i).getValue();
+        }
+        return new FeedbackModel(terms, weights);
+    }
+
+    /**
+     * Modelos de relevancia calculados y reutilizados de la caché desde que se creó.
+     */
+    public String cacheSummary() {
+        return "Modelos de feedback RM3: " + modelsBuilt.get() + " calculados, " + modelsReused.get() + " reutilizados";
+    }
+}
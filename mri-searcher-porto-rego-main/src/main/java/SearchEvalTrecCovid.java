@@ -1,5 +1,4 @@
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.queryparser.classic.QueryParser;
@@ -9,12 +8,11 @@ import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 public class SearchEvalTrecCovid {
@@ -22,7 +20,20 @@ public class SearchEvalTrecCovid {
     public static void main(String[] args) {
         String usage = "SearchEvalTrecCovid"
                 + " [-search <model> <parameter>] [-index <index_directory>] [-cut <n>]" +
-                " [-top <m>] [-queries all | <int1> | <int1-int2>]";
+                " [-top <m>] [-queries all | <int1> | <int1-int2>] [-metrics <m1,m2,...>] [-snippet <chars>] [-stats <file.csv|file.json>]" +
+                " [-directory " + IndexDirectories.USAGE + "] [-docs <docs_directory>] [-analyzer <config.properties>]" +
+                " [-fields " + MultiFieldQueries.USAGE + "] [-multifield bm25f|boost] [-totalHitsThreshold <n>]" +
+                " [-rm3 " + Rm3.USAGE + "]\n" +
+                "Con -rm3 cada query se expande con los fbTerms términos más probables de sus fbDocs primeros documentos " +
+                "(RM3), interpolados con la query original entera; con -fields los términos de feedback se buscan en los " +
+                "mismos campos, con los mismos pesos y modo. Hace falta un índice creado con IndexTrecCovid -termvectors\n" +
+                "Con -totalHitsThreshold n sólo se cuentan exactamente los primeros n hits (1000 por defecto): con un valor " +
+                "bajo la búsqueda se salta los documentos que no pueden entrar en el top, con el mismo ranking, y las " +
+                "estadísticas comparan los hits puntuados con los documentos que coinciden\n" +
+                "Con -fields se busca en varios campos con un peso por campo: con bm25f (por defecto con bm25) como un solo " +
+                "campo combinado, y con boost (por defecto con jm) como una disyunción de los campos con boosts\n" +
+                "Con -docs se indexa corpus.jsonl en memoria y se evalúa sobre ese índice, sin leer ni escribir -index. " +
+                "Sin -analyzer se usa el analyzer con el que se creó el índice";
 
         final float b = 0.75f;
         String model = null;
@@ -34,6 +45,16 @@ public class SearchEvalTrecCovid {
         int firstQuery = -1;
         int lastQuery = -1;
         String queryOption = "all";
+        String metricsSpec = null;
+        int snippetLength = 0;
+        String statsFile = null;
+        String directoryType = null;
+        String docsPath = null;
+        String analyzerPath = null;
+        Map<String, Float> fieldWeights = null;
+        MultiFieldQueries.Mode multiFieldMode = null;
+        int totalHitsThreshold = QueryUtils.TOTAL_HITS_THRESHOLD;
+        Rm3.Params rm3Params = null;
 
         // Procesamiento de argumentos de la línea de comandos
         for (int i = 0; i < args.length; i++) {
@@ -92,12 +113,76 @@ public class SearchEvalTrecCovid {
                         lastQuery = 50;
                     }
                     break;
+                case "-snippet":
+                    try {
+                        snippetLength = Integer.parseInt(args[++i]);
+                    } catch (Exception e) {
+                        System.err.println("Uso incorrecto: " + usage);
+                        System.exit(1);
+                    }
+                    break;
+                case "-stats":
+                    statsFile = args[++i];
+                    break;
+                case "-directory":
+                    directoryType = args[++i];
+                    break;
+                case "-docs":
+                    docsPath = args[++i];
+                    break;
+                case "-totalHitsThreshold":
+                    try {
+                        totalHitsThreshold = Integer.parseInt(args[++i]);
+                    } catch (Exception e) {
+                        System.err.println("Uso incorrecto: " + usage);
+                        System.exit(1);
+                    }
+                    break;
+                case "-rm3":
+                    try {
+                        rm3Params = new Rm3.Params(Integer.parseInt(args[++i]), Integer.parseInt(args[++i]),
+                                Float.parseFloat(args[++i]));
+                    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                        System.err.println(e instanceof NumberFormatException || e instanceof ArrayIndexOutOfBoundsException
+                                ? "Uso incorrecto: " + usage : e.getMessage());
+                        System.exit(1);
+                    }
+                    break;
+                case "-analyzer":
+                    analyzerPath = args[++i];
+                    break;
+                case "-fields":
+                case "-multifield":
+                    try {
+                        if (args[i].equals("-fields")) {
+                            fieldWeights = MultiFieldQueries.parse(args[++i]);
+                        } else {
+                            multiFieldMode = MultiFieldQueries.Mode.fromName(args[++i]);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        System.err.println(e.getMessage());
+                        System.exit(1);
+                    }
+                    break;
+                case "-metrics":
+                    metricsSpec = args[++i];
+                    break;
                 default:
                     System.err.println("Uso incorrecto: " + usage);
                     System.exit(1);
             }
         }
 
+        // Métricas adicionales (p.ej. "p@5,p@100,ndcg@10,bpref"), calculadas con la misma búsqueda
+        MetricEngine engine = null;
+        List<String> extraMetrics = MetricEngine.parseSpec(metricsSpec);
+        try {
+            engine = MetricEngine.withDefaults(cut, metricsSpec);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+
 
         Similarity similarity = null;
         switch (model) {
@@ -113,112 +198,78 @@ public class SearchEvalTrecCovid {
                 System.err.println("Modelo de RI no válido");
                 System.exit(1);
         }
+        if (multiFieldMode == null) {
+            multiFieldMode = model.equals("bm25") ? MultiFieldQueries.Mode.BM25F : MultiFieldQueries.Mode.BOOST;
+        } else if (multiFieldMode == MultiFieldQueries.Mode.BM25F && !model.equals("bm25")) {
+            System.err.println("La combinación bm25f sólo se puede usar con el modelo bm25");
+            System.exit(1);
+        }
 
 
         try {
-            Directory directory = FSDirectory.open(Paths.get(indexPath));
+            long openStart = System.nanoTime();
+            Directory directory = docsPath != null
+                    ? IndexTrecCovid.indexInMemory(docsPath, analyzerPath == null ? AnalyzerConfig.defaults() : AnalyzerConfig.load(analyzerPath),
+                    rm3Params != null)
+                    : IndexDirectories.open(Paths.get(indexPath), directoryType);
             IndexReader reader = DirectoryReader.open(directory);
+            long openNanos = System.nanoTime() - openStart;
             IndexSearcher searcher = new IndexSearcher(reader);
             searcher.setSimilarity(similarity);
-            Analyzer analyzer = new StandardAnalyzer();
+            Analyzer analyzer = AnalyzerConfig.forIndex(reader, analyzerPath);
 
 
             // Obtención de consultas y evaluación
-            QueryParser queryParser = new QueryParser("text", analyzer);
-            Map<Integer, Query> queries = QueryUtils.getQueries(firstQuery, lastQuery, queryParser);
-            List<QueryResults> queryResults = QueryUtils.evaluateQueries(searcher, queries, cut, topDocs);
-
-
-            String csvFile = "TREC-COVID." + model + "." + cut + ".cut." + parameterName + "." + parameterValue + ".q" + queryOption + ".csv";
-            String txtFile = "TREC-COVID." + model + "." + topDocs + ".hits." + parameterName + "." + parameterValue + ".q" + queryOption + ".txt";
-
-            // Generación de resultados
-
-
-            try (FileWriter csvWriter = new FileWriter(csvFile)) {
-                FileWriter txtWriter = new FileWriter(txtFile);
-
+            Map<Integer, Query> queries = fieldWeights == null
+                    ? QueryUtils.getQueries(firstQuery, lastQuery, new QueryParser("text", analyzer))
+                    : MultiFieldQueries.getQueries(firstQuery, lastQuery, fieldWeights, analyzer, multiFieldMode);
+            // Las ejecuciones multicampo o con RM3 no sobrescriben los ficheros de la búsqueda sólo en text
+            String runModel = fieldWeights == null ? model : model + "." + MultiFieldQueries.fileTag(fieldWeights, multiFieldMode);
+            if (rm3Params != null) {
+                Rm3 rm3 = new Rm3(searcher, "text");
+                long expandStart = System.nanoTime();
+                queries = QueryUtils.expandQueries(queries, rm3, rm3Params, fieldWeights, multiFieldMode);
+                System.out.println(String.format(Locale.ROOT, "Expansión RM3 de %d queries: %.1f ms",
+                        queries.size(), (System.nanoTime() - expandStart) / 1e6));
+                runModel += "." + rm3Params.label();
+            }
+            SearchStats stats = new SearchStats();
+            stats.setLabel(runModel + "." + parameterName + "." + parameterValue);
+            List<QueryResults> queryResults = QueryUtils.evaluateQueries(searcher, queries, cut, topDocs, engine, stats,
+                    totalHitsThreshold);
 
-                // Escribir cabeceras
-                csvWriter.append("Query,");
-                csvWriter.append("P@").append(String.valueOf(cut)).append(",");
-                csvWriter.append("Recall@").append(String.valueOf(cut)).append(",");
-                csvWriter.append("RR,");
-                csvWriter.append("AP@").append(String.valueOf(cut)).append("\n");
 
-                int numQueries = 0;
-                float sumPrecision = 0;
-                float sumRecall = 0;
-                float sumAP = 0;
-                float sumRR = 0;
+            String csvFile = "TREC-COVID." + runModel + "." + cut + ".cut." + parameterName + "." + parameterValue + ".q" + queryOption + ".csv";
+            String txtFile = "TREC-COVID." + runModel + "." + topDocs + ".hits." + parameterName + "." + parameterValue + ".q" + queryOption + ".txt";
+            String runFile = "TREC-COVID." + runModel + "." + parameterName + "." + parameterValue + ".q" + queryOption + ".run";
+            String runTag = runModel + "." + parameterName + "." + parameterValue;
 
-                // Escribir resultados para cada consulta
+            // Generación de resultados: cada query se escribe según se procesa
+            try (ResultsWriter resultsWriter = new ResultsWriter(csvFile, txtFile, runFile, runTag, true, cut, extraMetrics, snippetLength)) {
                 for (QueryResults results : queryResults) {
-
-                    String queryInfo = results.printDocInfo(searcher, topDocs);
-
-                    queryInfo = queryInfo + ("Query Metrics:\n\n");
-
-
-                    int queryId = results.getId();
-                    float precision = results.getPrecision();
-                    float recall = results.getRecall();
-                    float rr = results.getReciprocalRank();
-                    float ap = results.getAveragePrecision();
-
-                    queryInfo = queryInfo + ("Precision@" + cut + ": ") + (precision) + ("\t"); // P@n
-                    queryInfo = queryInfo + ("Recall@" + cut + ": ") + (recall) + ("\t"); // Recall@n
-                    queryInfo = queryInfo + ("RR@" + cut + ": ") + (rr) + ("\t"); // RR
-                    queryInfo = queryInfo + ("AP@" + cut + ": ") + (ap) + ("\n\n"); // AP@n
-
-                    txtWriter.write(queryInfo);
-                    System.out.println(queryInfo);
-
-
-                    csvWriter.append(String.valueOf(queryId)).append(",");
-                    csvWriter.append(String.valueOf(precision)).append(","); // P@n
-                    csvWriter.append(String.valueOf(recall)).append(","); // Recall@n
-                    csvWriter.append(String.valueOf(rr)).append(","); // RR
-                    csvWriter.append(String.valueOf(ap)).append("\n"); // AP@n
-
-                    numQueries++;
-                    sumPrecision += precision;
-                    sumRecall += recall;
-                    sumAP += ap;
-                    sumRR += rr;
+                    resultsWriter.writeQuery(results, searcher, topDocs);
                 }
+                resultsWriter.writeSummary();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
 
-                // Calcular promedios
-                float mPrecision = sumPrecision / numQueries;
-                float mRecall = sumRecall / numQueries;
-                float mRR = sumRR / numQueries;
-                float mAP = sumAP / numQueries;
-
-                String meanInfo = "\nTotal Metrics\nMean Precision :" + mPrecision +
-                        "\tMean Recall: " + mRecall +
-                        "\tMAP" + mAP +
-                        "\tmRR: " + mRR + "\n";
-                txtWriter.write(meanInfo);
-                System.out.println(meanInfo);
-
-                csvWriter.append("\nTotal Metrics\n");
-                csvWriter.append("Mean Precision: ").append(String.valueOf(mPrecision)).append("\t");
-                csvWriter.append("Mean Recall: ").append(String.valueOf(mRecall)).append("\t");
-                csvWriter.append("MRR: ").append(String.valueOf(mRR)).append("\t");
-                csvWriter.append("MAP: ").append(String.valueOf(mAP)).append("\n");
-
-                // Escribir promedios
-                csvWriter.append("Promedio,");
-                csvWriter.append(String.valueOf(mPrecision)).append(",");
-                csvWriter.append(String.valueOf(mRecall)).append(",");
-                csvWriter.append(String.valueOf(mRR)).append(",");
-                csvWriter.append(String.valueOf(mAP)).append("\n");
-
-                txtWriter.close();
-
+            // Coste de las búsquedas, junto al CSV de efectividad
+            if (statsFile == null) {
+                statsFile = csvFile.substring(0, csvFile.length() - ".csv".length()) + ".latency.csv";
+            }
+            System.out.println(stats.summary(null));
+            System.out.println((docsPath != null ? String.format(Locale.ROOT, "Indexación en memoria de %s: %.1f ms",
+                    docsPath, openNanos / 1e6) : IndexDirectories.openTime(directory, directoryType, openNanos))
+                    + String.format(Locale.ROOT, "\tPrimera query: %.3f ms", stats.firstSearchMs()));
+            try {
+                stats.export(statsFile);
             } catch (IOException e) {
                 e.printStackTrace();
             }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,373 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Servidor de búsqueda residente: mantiene abierto el índice con un SearcherManager y responde por HTTP a búsquedas
+ * y evaluaciones sin pagar en cada consulta el arranque de la JVM, la carga del índice en la caché de páginas ni el
+ * calentamiento del JIT. Un hilo comprueba periódicamente si hay un commit nuevo y, si lo hay, reabre el índice; las
+ * peticiones en curso terminan con el searcher que adquirieron.
+ *
+ * Endpoints (GET, respuesta en JSON):
+ *  - /search?q=TEXTO[&search=bm25|jm&param=P][&top=n]: ranking de la query (id, título y score de cada hit).
+ *  - /eval?queries=all|a|a-b[&search=bm25|jm&param=P][&cut=n][&metrics=m1,m2][&totalHitsThreshold=n]: métricas
+ *    por query y medias, como SearchEvalTrecCovid, y el coste de las búsquedas.
+ *  - /status: versión del índice y número de documentos.
+ */
+public class SearchServer {
+
+    private final SearcherManager manager;
+    private final Analyzer analyzer;
+    private final String defaultModel;
+    private final float defaultParam;
+    private final int defaultCut;
+    private final int defaultTop;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public SearchServer(SearcherManager manager, Analyzer analyzer, String model, float param, int cut, int top) {
+        this.manager = manager;
+        this.analyzer = analyzer;
+        this.defaultModel = model;
+        this.defaultParam = param;
+        this.defaultCut = cut;
+        this.defaultTop = top;
+    }
+
+    public static void main(String[] args) {
+        String usage = "SearchServer"
+                + " [-index <index_directory>] [-port <n>] [-host <address>] [-search <model> <parameter>] [-cut <n>] [-top <m>]"
+                + " [-refresh <ms>] [-numThreads <n>] [-analyzer <config.properties>]\n"
+                + "Sin -analyzer las queries se analizan con el analyzer con el que se creó el índice\n"
+                + "Por defecto sólo se atienden conexiones locales (loopback). Con -host se escucha en otra dirección "
+                + "(0.0.0.0 para todas las interfaces): el servidor no tiene autenticación";
+
+        String indexPath = "index";
+        int port = 8080;
+        String host = null;
+        String model = "bm25";
+        float param = 1.2f;
+        int cut = 10;
+        int top = 10;
+        long refreshMs = 1000;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        String analyzerPath = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-index":
+                        indexPath = args[++i];
+                        break;
+                    case "-port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "-host":
+                        host = args[++i];
+                        break;
+                    case "-search":
+                        model = args[++i];
+                        param = Float.parseFloat(args[++i]);
+                        break;
+                    case "-cut":
+                        cut = Integer.parseInt(args[++i]);
+                        break;
+                    case "-top":
+                        top = Integer.parseInt(args[++i]);
+                        break;
+                    case "-refresh":
+                        refreshMs = Long.parseLong(args[++i]);
+                        break;
+                    case "-numThreads":
+                        numThreads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-analyzer":
+                        analyzerPath = args[++i];
+                        break;
+                    default:
+                        System.err.println("Uso incorrecto: " + usage);
+                        System.exit(1);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Uso incorrecto: " + usage);
+            System.exit(1);
+        }
+        if (similarity(model, param) == null) {
+            System.err.println("Modelo de RI no válido");
+            System.exit(1);
+        }
+
+        try {
+            Directory directory = FSDirectory.open(Paths.get(indexPath));
+            SearcherManager manager = new SearcherManager(directory, null);
+
+            // Reapertura cuando aparece un commit nuevo
+            ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor();
+            refresher.scheduleWithFixedDelay(() -> {
+                try {
+                    manager.maybeRefresh();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+
+            Analyzer analyzer;
+            IndexSearcher initial = manager.acquire();
+            try {
+                analyzer = AnalyzerConfig.forIndex(initial.getIndexReader(), analyzerPath);
+            } finally {
+                manager.release(initial);
+            }
+
+            SearchServer server = new SearchServer(manager, analyzer, model, param, cut, top);
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            InetAddress address = host == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+            HttpServer http = server.start(new InetSocketAddress(address, port), executor);
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                http.stop(0);
+                executor.shutdown();
+                refresher.shutdown();
+                try {
+                    manager.close();
+                    directory.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+            System.out.println("Servidor de búsqueda sobre " + indexPath + " en http://"
+                    + (host == null ? "localhost" : host) + ":" + http.getAddress().getPort()
+                    + " (/search, /eval, /status)");
+        } catch (IOException e) {
+            System.err.println("No se pudo arrancar el servidor: " + e);
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Arranca el servidor HTTP en la dirección dada, atendiendo las peticiones en executor.
+     */
+    public HttpServer start(InetSocketAddress address, ExecutorService executor) throws IOException {
+        HttpServer http = HttpServer.create(address, 0);
+        http.createContext("/search", exchange -> handle(exchange, this::search));
+        http.createContext("/eval", exchange -> handle(exchange, this::eval));
+        http.createContext("/status", exchange -> handle(exchange, this::status));
+        http.setExecutor(executor);
+        http.start();
+        return http;
+    }
+
+    private interface Handler {
+        Object apply(IndexSearcher searcher, Map<String, String> params) throws IOException;
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        int status = 200;
+        Object body;
+        IndexSearcher searcher = manager.acquire();
+        try {
+            body = handler.apply(searcher, parseParams(exchange.getRequestURI().getRawQuery()));
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            body = Map.of("error", String.valueOf(e.getMessage()));
+        } catch (Exception e) {
+            e.printStackTrace();
+            status = 500;
+            body = Map.of("error", e.toString());
+        } finally {
+            manager.release(searcher);
+        }
+
+        byte[] response = mapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private static Map<String, String> parseParams(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    static Similarity similarity(String model, float param) {
+        switch (model) {
+            case "jm":
+                return new LMJelinekMercerSimilarity(param);
+            case "bm25":
+                return new BM25Similarity(param, 0.75f);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Searcher sobre el mismo reader con el modelo de la petición. Crear un IndexSearcher es barato y así no se
+     * cambia la similitud del searcher compartido mientras otras peticiones lo usan.
+     */
+    private IndexSearcher searcherFor(IndexSearcher shared, Map<String, String> params) {
+        String model = params.getOrDefault("search", defaultModel);
+        float param = params.containsKey("param") ? parseFloat(params.get("param"), "param") : defaultParam;
+        Similarity similarity = similarity(model, param);
+        if (similarity == null) {
+            throw new IllegalArgumentException("Modelo de RI no válido: " + model);
+        }
+        IndexSearcher searcher = new IndexSearcher(shared.getIndexReader());
+        searcher.setSimilarity(similarity);
+        return searcher;
+    }
+
+    private Object search(IndexSearcher shared, Map<String, String> params) throws IOException {
+        String text = params.get("q");
+        if (text == null || text.isBlank()) {
+            throw new IllegalArgumentException("Falta el parámetro q");
+        }
+        int top = params.containsKey("top") ? parseInt(params.get("top"), "top") : defaultTop;
+        IndexSearcher searcher = searcherFor(shared, params);
+
+        Query query;
+        try {
+            query = new QueryParser("text", analyzer).parse(text);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Error al parsear la consulta: " + e.getMessage());
+        }
+
+        long start = System.nanoTime();
+        TopDocs topDocs = searcher.search(query, top);
+        long searchNanos = System.nanoTime() - start;
+
+        int[] docIds = new int[topDocs.scoreDocs.length];
+        for (int i = 0; i < docIds.length; i++) {
+            docIds[i] = topDocs.scoreDocs[i].doc;
+        }
+        Map<Integer, Map<String, String>> documents =
+                new StoredFieldLoader(searcher.getIndexReader(), List.of("_id", "title")).load(docIds);
+
+        List<Map<String, Object>> hits = new ArrayList<>();
+        for (ScoreDoc hit : topDocs.scoreDocs) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("doc", hit.doc);
+            row.put("id", documents.get(hit.doc).get("_id"));
+            row.put("title", documents.get(hit.doc).get("title"));
+            row.put("score", hit.score);
+            hits.add(row);
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("query", query.toString());
+        response.put("totalHits", topDocs.totalHits.toString());
+        response.put("searchMs", searchNanos / 1e6);
+        response.put("hits", hits);
+        return response;
+    }
+
+    private Object eval(IndexSearcher shared, Map<String, String> params) {
+        int first = 1;
+        int last = 50;
+        String queries = params.getOrDefault("queries", "all");
+        if (!queries.equals("all")) {
+            int dash = queries.indexOf('-');
+            first = parseInt(dash < 0 ? queries : queries.substring(0, dash), "queries");
+            last = dash < 0 ? first : parseInt(queries.substring(dash + 1), "queries");
+        }
+        int cut = params.containsKey("cut") ? parseInt(params.get("cut"), "cut") : defaultCut;
+        MetricEngine engine = MetricEngine.withDefaults(cut, params.get("metrics"));
+        IndexSearcher searcher = searcherFor(shared, params);
+
+        QueryParser queryParser = new QueryParser("text", analyzer);
+        Map<Integer, Query> parsed = QueryUtils.getQueries(first, last, queryParser);
+        SearchStats stats = new SearchStats();
+        int totalHitsThreshold = params.containsKey("totalHitsThreshold")
+                ? parseInt(params.get("totalHitsThreshold"), "totalHitsThreshold") : QueryUtils.TOTAL_HITS_THRESHOLD;
+        List<QueryResults> results = QueryUtils.evaluateQueries(searcher, parsed, cut, cut, engine, stats, totalHitsThreshold);
+
+        List<Map<String, Object>> perQuery = new ArrayList<>();
+        Map<String, Double> sums = new LinkedHashMap<>();
+        for (QueryResults result : results) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("query", result.getId());
+            row.put("metrics", result.getMetrics());
+            perQuery.add(row);
+            for (Map.Entry<String, Float> metric : result.getMetrics().entrySet()) {
+                sums.merge(metric.getKey(), (double) metric.getValue(), Double::sum);
+            }
+        }
+        Map<String, Double> means = new LinkedHashMap<>();
+        for (Map.Entry<String, Double> sum : sums.entrySet()) {
+            means.put(sum.getKey(), sum.getValue() / results.size());
+        }
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("queries", perQuery);
+        response.put("means", means);
+        response.put("cost", stats.summaryValues(null));
+        return response;
+    }
+
+    private Object status(IndexSearcher searcher, Map<String, String> params) throws IOException {
+        IndexReader reader = searcher.getIndexReader();
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("numDocs", reader.numDocs());
+        response.put("maxDoc", reader.maxDoc());
+        response.put("segments", reader.leaves().size());
+        if (reader instanceof DirectoryReader) {
+            response.put("version", ((DirectoryReader) reader).getVersion());
+            response.put("generation", ((DirectoryReader) reader).getIndexCommit().getGeneration());
+        }
+        return response;
+    }
+
+    private static int parseInt(String value, String name) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Valor no válido para " + name + ": " + value);
+        }
+    }
+
+    private static float parseFloat(String value, String name) {
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Valor no válido para " + name + ": " + value);
+        }
+    }
+}
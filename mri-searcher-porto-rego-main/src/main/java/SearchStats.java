@@ -0,0 +1,223 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Medidas de coste por query: latencia de búsqueda, hits puntuados, hits contados por el collector, documentos que
+ * coinciden con la query, segmentos visitados y tiempo de carga de campos almacenados. Con un umbral de conteo bajo
+ * el collector se salta los bloques que no pueden entrar en el top y los hits puntuados quedan muy por debajo de los
+ * documentos que coinciden. Las medidas se agrupan por etiqueta (p.ej. el valor del parámetro
+ * del modelo) para poder comparar coste y calidad entre configuraciones.
+ */
+public class SearchStats {
+
+    private static final double[] PERCENTILES = {50, 95, 99};
+
+    private final List<Record> records = new ArrayList<>();
+    private String label = "";
+
+    public static class Record {
+        public final String label;
+        public final int queryId;
+        public final long searchNanos;
+        public final long storedFieldsNanos;
+        public final long hitsScored;
+        public final long totalHits;
+        public final long matchedDocs;
+        public final int segmentsVisited;
+
+        Record(String label, int queryId, long searchNanos, long storedFieldsNanos,
+               long hitsScored, long totalHits, long matchedDocs, int segmentsVisited) {
+            this.label = label;
+            this.queryId = queryId;
+            this.searchNanos = searchNanos;
+            this.storedFieldsNanos = storedFieldsNanos;
+            this.hitsScored = hitsScored;
+            this.totalHits = totalHits;
+            this.matchedDocs = matchedDocs;
+            this.segmentsVisited = segmentsVisited;
+        }
+    }
+
+    /**
+     * Etiqueta con la que se guardan las medidas registradas a partir de ahora.
+     */
+    public synchronized void setLabel(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Registra una búsqueda cuyo totalHits es exacto, así que coincide con los documentos encontrados.
+     */
+    public void record(int queryId, long searchNanos, long storedFieldsNanos,
+                       long hitsScored, long totalHits, int segmentsVisited) {
+        record(queryId, searchNanos, storedFieldsNanos, hitsScored, totalHits, totalHits, segmentsVisited);
+    }
+
+    public synchronized void record(int queryId, long searchNanos, long storedFieldsNanos,
+                                    long hitsScored, long totalHits, long matchedDocs, int segmentsVisited) {
+        records.add(new Record(label, queryId, searchNanos, storedFieldsNanos, hitsScored, totalHits, matchedDocs,
+                segmentsVisited));
+    }
+
+    public synchronized List<Record> getRecords() {
+        return new ArrayList<>(records);
+    }
+
+    private synchronized List<Record> recordsFor(String label) {
+        List<Record> selected = new ArrayList<>();
+        for (Record r : records) {
+            if (label == null || r.label.equals(label)) {
+                selected.add(r);
+            }
+        }
+        return selected;
+    }
+
+    private synchronized Set<String> labels() {
+        Set<String> labels = new LinkedHashSet<>();
+        for (Record r : records) {
+            labels.add(r.label);
+        }
+        return labels;
+    }
+
+    /**
+     * Percentil (por rango más cercano) de la latencia de búsqueda en milisegundos.
+     */
+    private static double percentileMs(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sortedNanos.length);
+        return sortedNanos[Math.max(rank, 1) - 1] / 1e6;
+    }
+
+    private static Map<String, Object> summarize(List<Record> selected) {
+        long[] latencies = new long[selected.size()];
+        long totalNanos = 0;
+        long storedNanos = 0;
+        long hitsScored = 0;
+        long matchedDocs = 0;
+        long segments = 0;
+        for (int i = 0; i < latencies.length; i++) {
+            Record r = selected.get(i);
+            latencies[i] = r.searchNanos;
+            totalNanos += r.searchNanos;
+            storedNanos += r.storedFieldsNanos;
+            hitsScored += r.hitsScored;
+            matchedDocs += r.matchedDocs;
+            segments += r.segmentsVisited;
+        }
+        Arrays.sort(latencies);
+
+        int n = Math.max(latencies.length, 1);
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("queries", latencies.length);
+        summary.put("meanMs", totalNanos / 1e6 / n);
+        for (double p : PERCENTILES) {
+            summary.put("p" + (int) p + "Ms", percentileMs(latencies, p));
+        }
+        summary.put("maxMs", latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1e6);
+        summary.put("qps", totalNanos == 0 ? 0 : latencies.length / (totalNanos / 1e9));
+        summary.put("meanHitsScored", (double) hitsScored / n);
+        summary.put("meanDocsMatched", (double) matchedDocs / n);
+        summary.put("meanSegmentsVisited", (double) segments / n);
+        summary.put("meanStoredFieldsMs", storedNanos / 1e6 / n);
+        return summary;
+    }
+
+    /**
+     * Latencia en ms de la primera búsqueda registrada (con el índice todavía frío), o 0 si no hay ninguna.
+     */
+    public synchronized double firstSearchMs() {
+        return records.isEmpty() ? 0 : records.get(0).searchNanos / 1e6;
+    }
+
+    /**
+     * Valores del resumen de las medidas con la etiqueta dada (todas si es null): media, percentiles y máximo de la
+     * latencia en ms, qps, hits puntuados, documentos que coinciden, segmentos y tiempo de carga de campos almacenados.
+     */
+    public Map<String, Object> summaryValues(String label) {
+        return summarize(recordsFor(label));
+    }
+
+    /**
+     * Resumen legible de las medidas con la etiqueta dada (todas si es null).
+     */
+    public String summary(String label) {
+        Map<String, Object> s = summarize(recordsFor(label));
+        return String.format(Locale.ROOT,
+                "Latencia (ms) media: %.3f\tp50: %.3f\tp95: %.3f\tp99: %.3f\tmax: %.3f\tqps: %.1f" +
+                        "\tHits puntuados: %.1f de %.1f\tSegmentos: %.1f\tCampos almacenados (ms): %.3f",
+                s.get("meanMs"), s.get("p50Ms"), s.get("p95Ms"), s.get("p99Ms"), s.get("maxMs"), s.get("qps"),
+                s.get("meanHitsScored"), s.get("meanDocsMatched"), s.get("meanSegmentsVisited"), s.get("meanStoredFieldsMs"));
+    }
+
+    /**
+     * Exporta las medidas por query y un resumen por etiqueta. El formato (JSON o CSV) se elige por la extensión.
+     */
+    public void export(String file) throws IOException {
+        if (file.toLowerCase().endsWith(".json")) {
+            exportJson(file);
+        } else {
+            exportCsv(file);
+        }
+    }
+
+    private void exportJson(String file) throws IOException {
+        Map<String, Object> root = new LinkedHashMap<>();
+        List<Map<String, Object>> queries = new ArrayList<>();
+        for (Record r : getRecords()) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("label", r.label);
+            row.put("query", r.queryId);
+            row.put("searchMs", r.searchNanos / 1e6);
+            row.put("storedFieldsMs", r.storedFieldsNanos / 1e6);
+            row.put("hitsScored", r.hitsScored);
+            row.put("totalHits", r.totalHits);
+            row.put("matchedDocs", r.matchedDocs);
+            row.put("segmentsVisited", r.segmentsVisited);
+            queries.add(row);
+        }
+        Map<String, Object> summaries = new LinkedHashMap<>();
+        for (String l : labels()) {
+            summaries.put(l, summarize(recordsFor(l)));
+        }
+        root.put("queries", queries);
+        root.put("summary", summaries);
+
+        ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8)) {
+            mapper.writeValue(writer, root);
+        }
+    }
+
+    private void exportCsv(String file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8)) {
+            writer.write("Label,Query,SearchMs,StoredFieldsMs,HitsScored,TotalHits,MatchedDocs,SegmentsVisited\n");
+            for (Record r : getRecords()) {
+                writer.write(String.format(Locale.ROOT, "%s,%d,%.3f,%.3f,%d,%d,%d,%d\n", r.label, r.queryId,
+                        r.searchNanos / 1e6, r.storedFieldsNanos / 1e6, r.hitsScored, r.totalHits, r.matchedDocs,
+                        r.segmentsVisited));
+            }
+
+            writer.write("\nLabel,Queries,MeanMs,P50Ms,P95Ms,P99Ms,MaxMs,QPS,MeanHitsScored,MeanDocsMatched,MeanSegmentsVisited,MeanStoredFieldsMs\n");
+            for (String l : labels()) {
+                Map<String, Object> s = summarize(recordsFor(l));
+                writer.write(l);
+                for (Object value : s.values()) {
+                    writer.write(",");
+                    writer.write(String.valueOf(value));
+                }
+                writer.write("\n");
+            }
+        }
+    }
+}
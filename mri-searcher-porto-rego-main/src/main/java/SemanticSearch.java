@@ -1,29 +1,42 @@
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.search.similarities.Similarity;
 
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class SemanticSearch {
 
     public static void main(String[] args) {
 
         String usage = "SemanticSearch"
-                + " [-search <model> <parameter>] [-index <index_directory>] [-cut <n>]" +
-                " [-top <m>] [-queries all | <int1> | <int1-int2>]";
+                + " [-search <model> <parameter>] [-embeddings <queries.fvecs|queries.npy>] [-index <index_directory>]" +
+                " [-cut <n>] [-top <m>] [-queries all | <int1> | <int1-int2>] [-stats <file.csv|file.json>]" +
+                " [-fusion rrf|weighted] [-alpha <vector_weight>] [-rrfk <k>] [-rescore <candidates>]" +
+                " [-exact <corpus.fvecs|corpus.npy>] [-directory " + IndexDirectories.USAGE + "] [-analyzer <config.properties>]\n" +
+                "Con -search y -embeddings a la vez se hace búsqueda híbrida, fusionando los dos rankings con -fusion\n" +
+                "-rescore reordena los candidatos int8 con los vectores float, que el índice sólo tiene si se creó con " +
+                "IndexTrecCovid -quantize int8 -keepRaw\n" +
+                "Con -exact se compara el top -cut del grafo HNSW con el de la búsqueda exacta sobre los embeddings del corpus " +
+                "(sólo en búsqueda kNN, sin -search)";
 
         String model = null;
         String parameterName = null;
@@ -34,6 +47,15 @@ public class SemanticSearch {
         int firstQuery = -1;
         int lastQuery = -1;
         String queryOption = "all";
+        String embeddingsPath = null;
+        String statsFile = null;
+        HybridSearch.Fusion fusion = HybridSearch.Fusion.RRF;
+        float alpha = 0.5f;
+        int rrfK = 60;
+        int rescoreCandidates = 0;
+        String exactPath = null;
+        String directoryType = null;
+        String analyzerPath = null;
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -91,69 +113,226 @@ public class SemanticSearch {
                         lastQuery = 50;
                     }
                     break;
+                case "-embeddings":
+                    embeddingsPath = args[++i];
+                    break;
+                case "-fusion":
+                    try {
+                        fusion = HybridSearch.Fusion.valueOf(args[++i].toUpperCase());
+                    } catch (Exception e) {
+                        System.err.println("Uso incorrecto: " + usage);
+                        System.exit(1);
+                    }
+                    break;
+                case "-alpha":
+                    try {
+                        alpha = Float.parseFloat(args[++i]);
+                    } catch (Exception e) {
+                        System.err.println("Uso incorrecto: " + usage);
+                        System.exit(1);
+                    }
+                    break;
+                case "-rrfk":
+                    try {
+                        rrfK = Integer.parseInt(args[++i]);
+                    } catch (Exception e) {
+                        System.err.println("Uso incorrecto: " + usage);
+                        System.exit(1);
+                    }
+                    break;
+                case "-rescore":
+                    try {
+                        rescoreCandidates = Integer.parseInt(args[++i]);
+                    } catch (Exception e) {
+                        System.err.println("Uso incorrecto: " + usage);
+                        System.exit(1);
+                    }
+                    break;
+                case "-exact":
+                    exactPath = args[++i];
+                    break;
+                case "-directory":
+                    directoryType = args[++i];
+                    break;
+                case "-analyzer":
+                    analyzerPath = args[++i];
+                    break;
+                case "-stats":
+                    statsFile = args[++i];
+                    break;
                 default:
                     System.err.println("Uso incorrecto: " + usage);
                     System.exit(1);
             }
         }
 
+        if (model == null && embeddingsPath == null) {
+            System.err.println("Es necesario indicar un modelo léxico (-search) o los embeddings de las queries (-embeddings)");
+            System.err.println("Uso incorrecto: " + usage);
+            System.exit(1);
+        }
+        // En modo híbrido el ranking es la fusión léxica + kNN, no el resultado del grafo HNSW
+        if (exactPath != null && (embeddingsPath == null || model != null)) {
+            System.err.println("-exact sólo se puede usar en búsqueda kNN (-embeddings sin -search)");
+            System.exit(1);
+        }
+
 
         Similarity similarity = null;
-        switch (model) {
-            case "jm":
-                similarity = new LMJelinekMercerSimilarity(parameterValue);
-                parameterName = "lambda";
-                break;
-            case "bm25":
-                similarity = new BM25Similarity(parameterValue, 0.75f);
-                parameterName = "k1";
-                break;
-            default:
-                System.err.println("Modelo de RI no válido");
-                System.exit(1);
+        if (model != null) {
+            switch (model) {
+                case "jm":
+                    similarity = new LMJelinekMercerSimilarity(parameterValue);
+                    parameterName = "lambda";
+                    break;
+                case "bm25":
+                    similarity = new BM25Similarity(parameterValue, 0.75f);
+                    parameterName = "k1";
+                    break;
+                default:
+                    System.err.println("Modelo de RI no válido");
+                    System.exit(1);
+            }
         }
 
         try {
-            Directory directory = FSDirectory.open(Paths.get(indexPath));
+            long openStart = System.nanoTime();
+            Directory directory = IndexDirectories.open(Paths.get(indexPath), directoryType);
             IndexReader reader = DirectoryReader.open(directory);
+            long openNanos = System.nanoTime() - openStart;
             IndexSearcher searcher = new IndexSearcher(reader);
-            searcher.setSimilarity(similarity);
-            Analyzer analyzer = new StandardAnalyzer();
-
+            if (similarity != null) {
+                searcher.setSimilarity(similarity);
+            }
 
-            QueryParser queryParser = new QueryParser("text", analyzer);
-            Map<Integer, Query> queries = QueryUtils.getQueries(firstQuery, lastQuery, queryParser);
-            List<QueryResults> queryResults = QueryUtils.evaluateQueries(searcher, queries, cut, topDocs);
+            Map<Integer, Query> lexicalQueries = null;
+            Map<Integer, Query> vectorQueries = null;
+            Embeddings queryEmbeddings = null;
+            String runName;
+            if (model != null) {
+                Analyzer analyzer = AnalyzerConfig.forIndex(reader, analyzerPath);
+                QueryParser queryParser = new QueryParser("text", analyzer);
+                lexicalQueries = QueryUtils.getQueries(firstQuery, lastQuery, queryParser);
+            }
+            if (embeddingsPath != null) {
+                // Búsqueda semántica: kNN sobre el grafo HNSW del campo vector con los embeddings de las queries
+                try {
+                    queryEmbeddings = Embeddings.load(embeddingsPath);
+                } catch (IOException | IllegalArgumentException e) {
+                    System.err.println("No se pudieron cargar los embeddings: " + e.getMessage());
+                    System.exit(1);
+                }
+                vectorQueries = QueryUtils.getVectorQueries(firstQuery, lastQuery, queryEmbeddings, Math.max(topDocs, cut),
+                        reader, rescoreCandidates);
+            }
 
-            String csvFile = "semantic.search." + model + "." + cut + ".cut." + parameterName + "." + parameterValue + ".q" + queryOption + ".csv";
-            String txtFile = "semantic.search." + model + "." + topDocs + ".hits." + parameterName + "." + parameterValue + ".q" + queryOption + ".txt";
+            SearchStats stats = new SearchStats();
+            MetricEngine engine = MetricEngine.withDefaults(cut, null);
+            List<QueryResults> queryResults;
 
-            try (FileWriter csvWriter = new FileWriter(csvFile)) {
-                FileWriter txtWriter = new FileWriter(txtFile);
+            if (lexicalQueries != null && vectorQueries != null) {
+                // Búsqueda híbrida: las dos queries se lanzan a la vez en un executor compartido
+                runName = "hybrid." + fusion.name().toLowerCase() + "." + model + "." + parameterName + "." + parameterValue
+                        + (fusion == HybridSearch.Fusion.RRF ? ".k." + rrfK : ".alpha." + alpha);
+                stats.setLabel(runName);
+                ExecutorService executor = Executors.newFixedThreadPool(2);
+                try {
+                    HybridSearch hybrid = new HybridSearch(searcher, executor, fusion, alpha, rrfK);
+                    queryResults = hybrid.evaluateQueries(lexicalQueries, vectorQueries, cut, topDocs, engine, stats);
+                } finally {
+                    executor.shutdown();
+                }
+            } else if (vectorQueries != null) {
+                runName = rescoreCandidates > 0 ? "knn.rescore." + rescoreCandidates : "knn";
+                stats.setLabel(runName);
+                queryResults = QueryUtils.evaluateQueries(searcher, vectorQueries, cut, topDocs, engine, stats);
+            } else {
+                runName = model + "." + parameterName + "." + parameterValue;
+                stats.setLabel(runName);
+                queryResults = QueryUtils.evaluateQueries(searcher, lexicalQueries, cut, topDocs, engine, stats);
+            }
 
-                csvWriter.append("Query,");
-                csvWriter.append("P@").append(String.valueOf(cut)).append(",");
-                csvWriter.append("Recall@").append(String.valueOf(cut)).append(",");
-                csvWriter.append("RR,");
-                csvWriter.append("AP@").append(String.valueOf(cut)).append("\n");
+            String csvFile = "semantic.search." + runName + "." + cut + ".cut.q" + queryOption + ".csv";
+            String txtFile = "semantic.search." + runName + "." + topDocs + ".hits.q" + queryOption + ".txt";
+            String runFile = "semantic.search." + runName + ".q" + queryOption + ".run";
 
-                // Escribir resultados para cada consulta
+            try (ResultsWriter resultsWriter = new ResultsWriter(csvFile, txtFile, runFile, runName, true, cut, List.of(), 0)) {
                 for (QueryResults results : queryResults) {
-                    // Escribir los resultados en el archivo CSV y TXT
-                    // Aquí se debería implementar la lógica para la búsqueda semántica y la escritura de resultados
-                    // Esto puede implicar modificar la clase QueryUtils para incluir la búsqueda semántica
-                    // y calcular las métricas correspondientes.
-                    // Luego, los resultados se pueden escribir en los archivos de salida.
+                    resultsWriter.writeQuery(results, searcher, topDocs);
                 }
+                resultsWriter.writeSummary();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
 
-                // Cerrar escritores
-                txtWriter.close();
+            // Recall y latencia de cada query y, con -exact, recall del grafo HNSW frente a la búsqueda exacta
+            FlatVectorScorer exact = null;
+            if (exactPath != null) {
+                FieldInfo fieldInfo = FieldInfos.getMergedFieldInfos(reader).fieldInfo(IndexTrecCovid.VECTOR_FIELD);
+                if (fieldInfo == null || fieldInfo.getVectorDimension() == 0) {
+                    System.err.println("El índice no tiene vectores en el campo " + IndexTrecCovid.VECTOR_FIELD);
+                    System.exit(1);
+                }
+                exact =new FlatVectorScorer(exactPath, fieldInfo.getVectorSimilarityFunction());
+                System.out.println("\nBúsqueda exacta sobre " + exact.size() + " vectores (" + exact.getOpsName() + ")");
+            }
+            System.out.println("\nQuery\tRecall@" + cut + "\tLatencia (ms)" + (exact != null ? "\tRecall HNSW@" + cut : ""));
+            // Latencia de cada query por id: los registros de stats no tienen por qué ir en el orden de queryResults
+            Map<Integer, SearchStats.Record> records = new HashMap<>();
+            for (SearchStats.Record record : stats.getRecords()) {
+                records.put(record.queryId, record);
+            }
+            double hnswRecall = 0;
+            for (int i = 0; i < queryResults.size(); i++) {
+                QueryResults results = queryResults.get(i);
+                System.out.printf(Locale.ROOT, "%d\t%.4f\t%.3f", results.getId(), results.getRecall(),
+                        records.get(results.getId()).searchNanos / 1e6);
+                if (exact != null) {
+                    float recall = exactOverlap(exact, queryEmbeddings.get(String.valueOf(results.getId())),
+                            results.getCorpusIds(), cut);
+                    hnswRecall += recall;
+                    System.out.printf(Locale.ROOT, "\t%.4f", recall);
+                }
+                System.out.println();
+            }
+            if (exact != null && !queryResults.isEmpty()) {
+                System.out.printf(Locale.ROOT, "Recall HNSW@%d medio: %.4f%n", cut, hnswRecall / queryResults.size());
+            }
+            System.out.println(stats.summary(null));
+            System.out.println(IndexDirectories.openTime(directory, directoryType, openNanos)
+                    + String.format(Locale.ROOT, "\tPrimera query: %.3f ms", stats.firstSearchMs()));
+
+            if (statsFile == null) {
+                statsFile = csvFile.substring(0, csvFile.length() - ".csv".length()) + ".latency.csv";
+            }
+            try {
+                stats.export(statsFile);
             } catch (IOException e) {
                 e.printStackTrace();
             }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
-}
 
+    /**
+     * Fracción de las cut filas más similares según la búsqueda exacta que están entre los cut primeros ids del ranking.
+     */
+    private static float exactOverlap(FlatVectorScorer exact, float[] queryVector, List<String> rankedIds, int cut) {
+        ScoreDoc[] expected = exact.search(queryVector, cut);
+        if (expected.length == 0) {
+            return 1;
+        }
+        Set<String> top = new HashSet<>(rankedIds.subList(0, Math.min(cut, rankedIds.size())));
+        int found = 0;
+        for (ScoreDoc hit : expected) {
+            if (top.contains(exact.id(hit.doc))) {
+                found++;
+            }
+        }
+        return (float) found / expected.length;
+    }
+}
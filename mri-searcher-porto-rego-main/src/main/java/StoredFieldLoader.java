@@ -0,0 +1,88 @@
+import org.apache.lucene.index.*;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Carga de campos almacenados sólo para los campos pedidos. Los documentos se recorren en orden de docID,
+ * reutilizando un único StoredFields por hoja, para no descomprimir repetidamente los mismos bloques
+ * cuando los hits llegan en orden de score.
+ */
+public class StoredFieldLoader {
+
+    private final IndexReader reader;
+    private final Set<String> fields;
+    private final String snippetField;
+    private final int maxLength;
+
+    public StoredFieldLoader(IndexReader reader, Collection<String> fields) {
+        this(reader, fields, null, 0);
+    }
+
+    /**
+     * @param snippetField campo cuyo valor se trunca (p.ej. "text")
+     * @param maxLength longitud máxima del campo snippetField; 0 para no truncar
+     */
+    public StoredFieldLoader(IndexReader reader, Collection<String> fields, String snippetField, int maxLength) {
+        this.reader = reader;
+        this.fields = new HashSet<>(fields);
+        this.snippetField = snippetField;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Devuelve, para cada docID pedido, los valores de los campos solicitados (campo -> valor).
+     */
+    public Map<Integer, Map<String, String>> load(int[] docIds) throws IOException {
+        int[] sorted = docIds.clone();
+        Arrays.sort(sorted);
+
+        Map<Integer, Map<String, String>> values = new HashMap<>(sorted.length * 2);
+        List<LeafReaderContext> leaves = reader.leaves();
+
+        int currentLeaf = -1;
+        StoredFields leafFields = null;
+        int docBase = 0;
+
+        for (int docId : sorted) {
+            if (values.containsKey(docId)) {
+                continue;
+            }
+            int leafIndex = ReaderUtil.subIndex(docId, leaves);
+            if (leafIndex != currentLeaf) {
+                LeafReaderContext leaf = leaves.get(leafIndex);
+                leafFields = leaf.reader().storedFields();
+                docBase = leaf.docBase;
+                currentLeaf = leafIndex;
+            }
+
+            FieldVisitor visitor = new FieldVisitor();
+            leafFields.document(docId - docBase, visitor);
+            values.put(docId, visitor.values);
+        }
+        return values;
+    }
+
+    private class FieldVisitor extends StoredFieldVisitor {
+        private final Map<String, String> values = new HashMap<>();
+        private int remaining = fields.size();
+
+        @Override
+        public Status needsField(FieldInfo fieldInfo) {
+            if (remaining == 0) {
+                // Ya están todos los campos pedidos: no se lee el resto del documento
+                return Status.STOP;
+            }
+            return fields.contains(fieldInfo.name) ? Status.YES : Status.NO;
+        }
+
+        @Override
+        public void stringField(FieldInfo fieldInfo, String value) {
+            if (maxLength > 0 && fieldInfo.name.equals(snippetField) && value.length() > maxLength) {
+                value = value.substring(0, maxLength) + "...";
+            }
+            values.put(fieldInfo.name, value);
+            remaining--;
+        }
+    }
+}
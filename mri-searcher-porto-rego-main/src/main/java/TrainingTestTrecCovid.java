@@ -1,5 +1,4 @@
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.queryparser.classic.QueryParser;
@@ -9,7 +8,6 @@ import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 
 import java.io.FileWriter;
 import java.io.IOException;
@@ -21,11 +19,29 @@ public class TrainingTestTrecCovid {
     public static void main(String[] args) {
         String usage = "TrainingTestTrecCovid"
                 + "[-evaljm <int1-int2> <int3-int4>]|[-evalbm25 <int1-int2> <int3-int4>]" +
-                "[-cut <n>] [-metrica P|R|MRR|MAP] -index <ruta>";
+                "[-cut <n>] [-metrica P|R|MRR|MAP|NDCG|RPREC|BPREF|SUCCESS|<metrica>@<k>] -index <ruta> [-stats <file.csv|file.json>]" +
+                " [-directory " + IndexDirectories.USAGE + "] [-docs <docs_directory>] [-analyzer <config.properties>]" +
+                " [-fields campo^peso1/peso2/...,campo^peso,...] [-multifield bm25f|boost] [-totalHitsThreshold <n>]" +
+                " [-rm3 <fbDocs1/fbDocs2/...> <fbTerms1/...> <originalQueryWeight1/...>]\n" +
+                "Con -rm3 las queries se expanden con RM3 (ver SearchEvalTrecCovid) y el entrenamiento prueba también todas " +
+                "las combinaciones de sus parámetros. Los modelos de feedback se reutilizan entre las combinaciones que sólo " +
+                "cambian fbTerms o el peso de la query original\n" +
+                "Con -fields se busca en varios campos (ver SearchEvalTrecCovid) y el entrenamiento prueba todas las " +
+                "combinaciones de parámetro del modelo y pesos de los campos\n" +
+                "Con -docs se indexa corpus.jsonl en memoria y se evalúa sobre ese índice, sin leer ni escribir -index. " +
+                "Sin -analyzer se usa el analyzer con el que se creó el índice";
 
         String indexPath = "";
         int cut = 0;
         String metric = "";
+        String statsFile = null;
+        String directoryType = null;
+        String docsPath = null;
+        String analyzerPath = null;
+        List<Map<String, Float>> weightSweep = null;
+        MultiFieldQueries.Mode multiFieldMode = null;
+        int totalHitsThreshold = QueryUtils.TOTAL_HITS_THRESHOLD;
+        List<Rm3.Params> rm3Sweep = null;
         int trainingStart = 0;
         int trainingEnd = 0;
         int testStart = 0;
@@ -50,6 +66,47 @@ public class TrainingTestTrecCovid {
                         System.exit(-1);
                     }
                     break;
+                case "-directory":
+                    directoryType = args[++i];
+                    break;
+                case "-docs":
+                    docsPath = args[++i];
+                    break;
+                case "-totalHitsThreshold":
+                    try {
+                        totalHitsThreshold = Integer.parseInt(args[++i]);
+                    } catch (Exception e) {
+                        System.out.println(usage);
+                        System.exit(-1);
+                    }
+                    break;
+                case "-rm3":
+                    try {
+                        rm3Sweep = Rm3.Params.parseSweep(args[++i], args[++i], args[++i]);
+                    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                        System.err.println(e instanceof IllegalArgumentException ? e.getMessage() : usage);
+                        System.exit(1);
+                    }
+                    break;
+                case "-analyzer":
+                    analyzerPath = args[++i];
+                    break;
+                case "-fields":
+                case "-multifield":
+                    try {
+                        if (args[i].equals("-fields")) {
+                            weightSweep = MultiFieldQueries.parseSweep(args[++i]);
+                        } else {
+                            multiFieldMode = MultiFieldQueries.Mode.fromName(args[++i]);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        System.err.println(e.getMessage());
+                        System.exit(1);
+                    }
+                    break;
+                case "-stats":
+                    statsFile = args[++i];
+                    break;
                 case "-metrica":
                     metric = args[++i].toLowerCase();
                     break;
@@ -112,34 +169,97 @@ public class TrainingTestTrecCovid {
             System.err.println("Es necesario elegir un modelo para el entrenamiento (\"-evaljm\" o \"-evalbm\")");
             System.exit(-1);
         }
-        Directory directory;
+        if (multiFieldMode == null) {
+            multiFieldMode = indexingModel.equals("bm25") ? MultiFieldQueries.Mode.BM25F : MultiFieldQueries.Mode.BOOST;
+        } else if (multiFieldMode == MultiFieldQueries.Mode.BM25F && !indexingModel.equals("bm25")) {
+            System.err.println("La combinación bm25f sólo se puede usar con el modelo bm25");
+            System.exit(1);
+        }
+        // Las métricas con corte explícito (p.ej. "ndcg@20") se añaden a las que se calculan por defecto
+        MetricEngine engine = null;
+        try {
+            engine = MetricEngine.withDefaults(cut, metric.contains("@") ? metric : null);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        Directory directory = null;
         IndexReader reader;
-        Analyzer analyzer = new StandardAnalyzer();
+        long openNanos = 0;
+        Analyzer analyzer = null;
         IndexSearcher searcher = null;
-        QueryParser queryParser = new QueryParser("text", analyzer);
-
-        Map<Integer, Query> trainingQueries = QueryUtils.getQueries(trainingStart, trainingEnd, queryParser);
-        Map<Integer, Query> testQueries = QueryUtils.getQueries(testStart, testEnd, queryParser);
-
+        Rm3 rm3 = null;
 
         try {
-            directory = FSDirectory.open(Paths.get(indexPath));
+            long openStart = System.nanoTime();
+            directory = docsPath != null
+                    ? IndexTrecCovid.indexInMemory(docsPath, analyzerPath == null ? AnalyzerConfig.defaults() : AnalyzerConfig.load(analyzerPath),
+                    rm3Sweep != null)
+                    : IndexDirectories.open(Paths.get(indexPath), directoryType);
             reader = DirectoryReader.open(directory);
+            openNanos = System.nanoTime() - openStart;
             searcher = new IndexSearcher(reader);
+            // Las queries se analizan igual que se analizaron los documentos
+            analyzer = AnalyzerConfig.forIndex(reader, analyzerPath);
+            if (rm3Sweep != null) {
+                rm3 = new Rm3(searcher, "text");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
 
-        float bestParamValue = 0.0f, bestMetricValue = 0.0f;
+        // Configuraciones del entrenamiento: cada parámetro del modelo con cada combinación de pesos de los campos y
+        // de parámetros de RM3
+        if (weightSweep == null) {
+            weightSweep = Collections.singletonList(null);
+        }
+        if (rm3Sweep == null) {
+            rm3Sweep = Collections.singletonList(null);
+        }
+        List<Float> candidateParams = new ArrayList<>();
+        List<Map<String, Float>> candidateWeights = new ArrayList<>();
+        List<Rm3.Params> candidateRm3 = new ArrayList<>();
+        List<String> candidateLabels = new ArrayList<>();
+        for (float param : trainingParams) {
+            for (Map<String, Float> weights : weightSweep) {
+                for (Rm3.Params rm3Params : rm3Sweep) {
+                    candidateParams.add(param);
+                    candidateWeights.add(weights);
+                    candidateRm3.add(rm3Params);
+                    candidateLabels.add(param + (weights == null ? "" : " " + MultiFieldQueries.label(weights))
+                            + (rm3Params == null ? "" : " " + rm3Params.label()));
+                }
+            }
+        }
+
+        // Las queries sólo dependen de los pesos, no del parámetro del modelo
+        Map<Map<String, Float>, Map<Integer, Query>> trainingQueriesByWeights = new HashMap<>();
+        Map<Integer, Query> trainingQueries = null;
+        try {
+            for (Map<String, Float> weights : weightSweep) {
+                trainingQueries = getQueries(trainingStart, trainingEnd, weights, analyzer, multiFieldMode);
+                trainingQueriesByWeights.put(weights, trainingQueries);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+
+        SearchStats stats = new SearchStats();
+        float bestMetricValue = 0.0f;
+        int bestCandidate = 0;
         float metricAcum, metricAverage, currentMetric;
         int numQueries = trainingQueries.size();
 
-        Float[][] queryMetrics = new Float[numQueries + 1][trainingParams.size()];
+        Float[][] queryMetrics = new Float[numQueries + 1][candidateLabels.size()];
 
 
-        for (int i = 0; i < trainingParams.size(); i++) {
-            float paramValue = trainingParams.get(i);
+        for (int i = 0; i < candidateLabels.size(); i++) {
+            float paramValue = candidateParams.get(i);
             if (indexingModel.equals("jm")) {
                 similarity = new LMJelinekMercerSimilarity(paramValue);
             } else {
@@ -147,7 +267,14 @@ public class TrainingTestTrecCovid {
             }
 
             searcher.setSimilarity(similarity);
-            List<QueryResults> trainingQResults = QueryUtils.evaluateQueries(searcher, trainingQueries, cut, cut);
+            Map<Integer, Query> candidateQueries = trainingQueriesByWeights.get(candidateWeights.get(i));
+            if (candidateRm3.get(i) != null) {
+                candidateQueries = QueryUtils.expandQueries(candidateQueries, rm3, candidateRm3.get(i),
+                        candidateWeights.get(i), multiFieldMode);
+            }
+            stats.setLabel("training." + candidateLabels.get(i));
+            List<QueryResults> trainingQResults = QueryUtils.evaluateQueries(searcher,
+                    candidateQueries, cut, cut, engine, stats, totalHitsThreshold);
             metricAcum = 0.0f;
 
             for (QueryResults qr : trainingQResults) {
@@ -160,12 +287,21 @@ public class TrainingTestTrecCovid {
 
             if (metricAverage >= bestMetricValue) {
                 bestMetricValue = metricAverage;
-                bestParamValue = paramValue;
+                bestCandidate = i;
             }
         }
+        float bestParamValue = candidateParams.get(bestCandidate);
+        String bestLabel = candidateLabels.get(bestCandidate);
+        Map<Integer, Query> testQueries = getQueries(testStart, testEnd, candidateWeights.get(bestCandidate), analyzer, multiFieldMode);
+        // Los entrenamientos multicampo o con RM3 no sobrescriben los ficheros del entrenamiento sólo en text
+        String runModel = candidateWeights.get(bestCandidate) == null ? indexingModel
+                : indexingModel + "." + multiFieldMode.name().toLowerCase();
+        if (candidateRm3.get(bestCandidate) != null) {
+            runModel += ".rm3";
+        }
 
         String trainingFile = String.format("TREC-COVID.%s.training.%d-%d.test.%d-%d.%s%d.training.csv",
-                indexingModel, trainingStart, trainingEnd, testStart, testEnd, metric, cut);
+                runModel, trainingStart, trainingEnd, testStart, testEnd, metric, cut);
 
 
         if (indexingModel.equals("jm")) {
@@ -174,11 +310,17 @@ public class TrainingTestTrecCovid {
             similarity = new BM25Similarity(bestParamValue, b);
         }
         searcher.setSimilarity(similarity);
-        List<QueryResults> testQResults = QueryUtils.evaluateQueries(searcher, testQueries, cut, cut);
+        if (candidateRm3.get(bestCandidate) != null) {
+            testQueries = QueryUtils.expandQueries(testQueries, rm3, candidateRm3.get(bestCandidate),
+                    candidateWeights.get(bestCandidate), multiFieldMode);
+        }
+        stats.setLabel("test." + bestLabel);
+        List<QueryResults> testQResults = QueryUtils.evaluateQueries(searcher, testQueries, cut, cut, engine, stats,
+                totalHitsThreshold);
 
         StringBuilder trainingResults = new StringBuilder(metric + "@" + cut);
-        for (float param : trainingParams) {
-            trainingResults.append(",").append(param);
+        for (String label : candidateLabels) {
+            trainingResults.append(",").append(label);
         }
         for (int i = 0; i < queryMetrics.length; i++) {
             if(i == queryMetrics.length - 1){
@@ -198,7 +340,7 @@ public class TrainingTestTrecCovid {
             e.printStackTrace();
         }
 
-        StringBuilder testResults = new StringBuilder(bestParamValue + "," + metric);
+        StringBuilder testResults = new StringBuilder(bestLabel + "," + metric);
         metricAcum = 0;
         for (QueryResults qr : testQResults){
             currentMetric = qr.getMetricByName(metric);
@@ -209,7 +351,7 @@ public class TrainingTestTrecCovid {
         testResults.append("\navg,").append(metricAcum / testQResults.size());
 
         String testFile = String.format("TREC-COVID.%s.training.%d-%d.test.%d-%d.%s%d.test.csv",
-                indexingModel, trainingStart, trainingEnd, testStart, testEnd, metric, cut);
+                runModel, trainingStart, trainingEnd, testStart, testEnd, metric, cut);
         try (FileWriter testWriter = new FileWriter(testFile)) {
             testWriter.write(testResults.toString());
         } catch (Exception e) {
@@ -218,6 +360,37 @@ public class TrainingTestTrecCovid {
         System.out.println("\nTest results:\n");
         System.out.println(testResults);
 
+        // Coste de cada configuración evaluada, para comparar coste y calidad entre parámetros
+        System.out.println("\nLatency:\n");
+        for (String label : candidateLabels) {
+            System.out.println(label + "\t" + stats.summary("training." + label));
+        }
+        System.out.println("test " + bestLabel + "\t" + stats.summary("test." + bestLabel));
+        System.out.println((docsPath != null ? String.format(Locale.ROOT, "Indexación en memoria de %s: %.1f ms",
+                docsPath, openNanos / 1e6) : IndexDirectories.openTime(directory, directoryType, openNanos))
+                + String.format(Locale.ROOT, "\tPrimera query: %.3f ms", stats.firstSearchMs()));
+        if (rm3 != null) {
+            System.out.println(rm3.cacheSummary());
+        }
+        if (statsFile != null) {
+            try {
+                stats.export(statsFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
 
     }
+
+    /**
+     * Queries de los ids entre first y last: sólo sobre text si weights es null o sobre varios campos con esos pesos.
+     */
+    private static Map<Integer, Query> getQueries(int first, int last, Map<String, Float> weights, Analyzer analyzer,
+                                                  MultiFieldQueries.Mode mode) {
+        if (weights == null) {
+            return QueryUtils.getQueries(first, last, new QueryParser("text", analyzer));
+        }
+        return MultiFieldQueries.getQueries(first, last, weights, analyzer, mode);
+    }
 }
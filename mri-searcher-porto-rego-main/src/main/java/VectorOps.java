@@ -0,0 +1,114 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Productos escalares y distancias entre un vector de query y una fila de una matriz float32 little endian
+ * (por ejemplo, un fichero de embeddings mapeado en memoria), sin copiar la fila al heap.
+ *
+ * create() devuelve la implementación con la Vector API (PanamaVectorOps) si la JVM se arrancó con
+ * --add-modules jdk.incubator.vector, y la escalar en otro caso.
+ */
+interface VectorOps {
+
+    /**
+     * Producto escalar entre query y los query.length floats de matrix a partir del byte offset.
+     */
+    float dotProduct(float[] query, ByteBuffer matrix, int offset);
+
+    /**
+     * Distancia euclídea al cuadrado entre query y la fila de matrix que empieza en offset.
+     */
+    float squareDistance(float[] query, ByteBuffer matrix, int offset);
+
+    /**
+     * Norma al cuadrado de los dimension floats de matrix a partir de offset.
+     */
+    float squareNorm(ByteBuffer matrix, int offset, int dimension);
+
+    String name();
+
+    static VectorOps create() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                VectorOps ops = (VectorOps) Class.forName("PanamaVectorOps").getDeclaredConstructor().newInstance();
+                // Comprueba que la Vector API de esta JVM es compatible con la que se usó al compilar
+                ByteBuffer probe = ByteBuffer.allocate(Float.BYTES).order(ByteOrder.LITTLE_ENDIAN).putFloat(0, 1);
+                if (ops.dotProduct(new float[]{1}, probe, 0) == 1) {
+                    return ops;
+                }
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.err.println("No se pudo usar la Vector API, se usa la implementación escalar: " + e);
+            }
+        }
+        return new Scalar();
+    }
+
+    /**
+     * Implementación escalar con cuatro acumuladores independientes, que el JIT puede vectorizar parcialmente.
+     */
+    class Scalar implements VectorOps {
+
+        @Override
+        public float dotProduct(float[] query, ByteBuffer matrix, int offset) {
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            int bound = query.length & ~3;
+            for (; i < bound; i += 4) {
+                int o = offset + i * Float.BYTES;
+                s0 += query[i] * matrix.getFloat(o);
+                s1 += query[i + 1] * matrix.getFloat(o + 4);
+                s2 += query[i + 2] * matrix.getFloat(o + 8);
+                s3 += query[i + 3] * matrix.getFloat(o + 12);
+            }
+            for (; i < query.length; i++) {
+                s0 += query[i] * matrix.getFloat(offset + i * Float.BYTES);
+            }
+            return s0 + s1 + s2 + s3;
+        }
+
+        @Override
+        public float squareDistance(float[] query, ByteBuffer matrix, int offset) {
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            int bound = query.length & ~3;
+            for (; i < bound; i += 4) {
+                int o = offset + i * Float.BYTES;
+                float d0 = query[i] - matrix.getFloat(o);
+                float d1 = query[i + 1] - matrix.getFloat(o + 4);
+                float d2 = query[i + 2] - matrix.getFloat(o + 8);
+                float d3 = query[i + 3] - matrix.getFloat(o + 12);
+                s0 += d0 * d0;
+                s1 += d1 * d1;
+                s2 += d2 * d2;
+                s3 += d3 * d3;
+            }
+            for (; i < query.length; i++) {
+                float d = query[i] - matrix.getFloat(offset + i * Float.BYTES);
+                s0 += d * d;
+            }
+            return s0 + s1 + s2 + s3;
+        }
+
+        @Override
+        public float squareNorm(ByteBuffer matrix, int offset, int dimension) {
+            float s0 = 0, s1 = 0;
+            int i = 0;
+            for (; i + 1 < dimension; i += 2) {
+                float v0 = matrix.getFloat(offset + i * Float.BYTES);
+                float v1 = matrix.getFloat(offset + (i + 1) * Float.BYTES);
+                s0 += v0 * v0;
+                s1 += v1 * v1;
+            }
+            if (i < dimension) {
+                float v = matrix.getFloat(offset + i * Float.BYTES);
+                s0 += v * v;
+            }
+            return s0 + s1;
+        }
+
+        @Override
+        public String name() {
+            return "scalar";
+        }
+    }
+}
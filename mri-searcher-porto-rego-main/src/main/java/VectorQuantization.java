@@ -0,0 +1,81 @@
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Cuantización escalar simétrica de embeddings a int8: q = round(x * scale), con scale = 127 / c, siendo c el
+ * cuantil 99.9 de |x| sobre una muestra del corpus (los valores por encima se saturan). Como el mismo factor se aplica
+ * a documentos y queries, el producto escalar entre vectores cuantizados es proporcional al original.
+ *
+ * El factor se guarda en los datos del commit del índice para que el buscador cuantice las queries igual.
+ */
+public class VectorQuantization {
+
+    public static final String SCALE_KEY = "vector.int8.scale";
+
+    private static final double QUANTILE = 0.999;
+    private static final int SAMPLE_SIZE = 1 << 20;
+
+    private VectorQuantization() {
+    }
+
+    public static float computeScale(Embeddings embeddings) {
+        int dimension = embeddings.dimension();
+        long total = (long) embeddings.size() * dimension;
+        int sampleSize = (int) Math.min(total, SAMPLE_SIZE);
+        float[] sample = new float[sampleSize];
+
+        Random random = new Random(0);
+        for (int i = 0; i < sampleSize; i++) {
+            long component = total <= SAMPLE_SIZE ? i : (long) (random.nextDouble() * total);
+            sample[i] = Math.abs(embeddings.get((int) (component / dimension), (int) (component % dimension)));
+        }
+        Arrays.sort(sample);
+        float bound = sample[Math.min(sampleSize - 1, (int) (QUANTILE * sampleSize))];
+        return bound > 0 ? 127.0f / bound : 1.0f;
+    }
+
+    public static byte[] quantize(float[] vector, float scale) {
+        byte[] quantized = new byte[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            int q = Math.round(vector[i] * scale);
+            quantized[i] = (byte) Math.max(-127, Math.min(127, q));
+        }
+        return quantized;
+    }
+
+    /**
+     * Factor de cuantización del índice, o null si sus vectores no están cuantizados.
+     */
+    public static Float readScale(IndexReader reader) throws IOException {
+        if (!(reader instanceof DirectoryReader)) {
+            return null;
+        }
+        Map<String, String> userData = ((DirectoryReader) reader).getIndexCommit().getUserData();
+        String scale = userData.get(SCALE_KEY);
+        return scale == null ? null : Float.parseFloat(scale);
+    }
+
+    /**
+     * Codifica el vector original en little endian para guardarlo como BinaryDocValues y poder reordenar
+     * los candidatos con los valores float.
+     */
+    public static BytesRef encode(float[] vector) {
+        ByteBuffer buffer = ByteBuffer.allocate(vector.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(vector);
+        return new BytesRef(buffer.array());
+    }
+
+    public static float[] decode(BytesRef bytes) {
+        float[] vector = new float[bytes.length / Float.BYTES];
+        ByteBuffer.wrap(bytes.bytes, bytes.offset, bytes.length).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(vector);
+        return vector;
+    }
+}
@@ -0,0 +1,93 @@
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Métricas de MetricEngine sobre un ranking pequeño calculado a mano.
+ *
+ * Juicios: a=2, b=1 y d=1 relevantes (R = 3), c=0 juzgado no relevante. Ranking: x a c b y z, con x, y, z sin
+ * juicio y d sin recuperar.
+ */
+public class MetricEngineTest extends TestCase {
+
+    private static final Map<String, Integer> JUDGEMENTS = Map.of("a", 2, "b", 1, "c", 0, "d", 1);
+    private static final List<String> RANKING = List.of("x", "a", "c", "b", "y", "z");
+    private static final float DELTA = 1e-6f;
+
+    private static float evaluate(String metric) {
+        return new MetricEngine(List.of(metric)).evaluate(RANKING, JUDGEMENTS).get(metric);
+    }
+
+    private static double log2(int x) {
+        return Math.log(x) / Math.log(2);
+    }
+
+    public void testPrecisionAndRecall() {
+        // a y b en el top 5
+        assertEquals(2 / 5f, evaluate("p@5"), DELTA);
+        assertEquals(2 / 3f, evaluate("r@5"), DELTA);
+        // Sin corte, P se divide entre los 6 recuperados
+        assertEquals(2 / 6f, evaluate("p"), DELTA);
+        assertEquals(0f, evaluate("p@1"), DELTA);
+    }
+
+    public void testReciprocalRank() {
+        assertEquals(1 / 2f, evaluate("rr"), DELTA);
+        assertEquals(0f, evaluate("rr@1"), DELTA);
+    }
+
+    public void testAveragePrecision() {
+        // Relevantes en los rangos 2 y 4: (1/2 + 2/4) / R
+        assertEquals((1 / 2f + 2 / 4f) / 3, evaluate("ap"), DELTA);
+        assertEquals((1 / 2f) / 3, evaluate("ap@3"), DELTA);
+    }
+
+    public void testNdcg() {
+        // Ganancia 2 en el rango 2 y 1 en el rango 4; ideal 2, 1, 1 en los rangos 1 a 3
+        double dcg = 2 / log2(3) + 1 / log2(5);
+        double idcg = 2 / log2(2) + 1 / log2(3) + 1 / log2(4);
+        assertEquals((float) (dcg / idcg), evaluate("ndcg@5"), DELTA);
+        // Con corte 2 el ideal sólo tiene dos documentos
+        assertEquals((float) ((2 / log2(3)) / (2 / log2(2) + 1 / log2(3))), evaluate("ndcg@2"), DELTA);
+    }
+
+    public void testRPrecision() {
+        // R = 3: en x a c sólo a es relevante
+        assertEquals(1 / 3f, evaluate("rprec"), DELTA);
+    }
+
+    public void testBpref() {
+        // min(R, N) = min(3, 1) = 1; a no tiene no relevantes encima (1), b tiene a c encima (1 - 1/1 = 0)
+        assertEquals(1 / 3f, evaluate("bpref"), DELTA);
+    }
+
+    public void testInfAP() {
+        // a en el rango 2: 1/2 + 1/2 * 0/1 * ... = 1/2
+        // b en el rango 4: 1/4 + 3/4 * 2/3 * (1 + e) / (2 + 2e) = 1/2
+        assertEquals((1 / 2f + 1 / 2f) / 3, evaluate("infap"), DELTA);
+        // Relevante en el primer rango: precisión 1
+        assertEquals(1 / 3f, new MetricEngine(List.of("infap")).evaluate(List.of("a"), JUDGEMENTS).get("infap"), DELTA);
+    }
+
+    public void testSuccess() {
+        assertEquals(0f, evaluate("success@1"), DELTA);
+        assertEquals(1f, evaluate("success@2"), DELTA);
+    }
+
+    public void testDepth() {
+        assertEquals(5, new MetricEngine(List.of("p@5", "ndcg@3")).getDepth(JUDGEMENTS));
+        // rprec necesita al menos R documentos
+        assertEquals(3, new MetricEngine(List.of("p@2", "rprec")).getDepth(JUDGEMENTS));
+        assertEquals(MetricEngine.DEEP_DEPTH, new MetricEngine(List.of("p@5", "bpref")).getDepth(JUDGEMENTS));
+        assertEquals(MetricEngine.DEEP_DEPTH, MetricEngine.withDefaults(10, null).getDepth(JUDGEMENTS));
+    }
+
+    public void testInvalidMetric() {
+        try {
+            new MetricEngine(List.of("success"));
+            fail("success sin corte debería rechazarse");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -6,10 +6,14 @@ public class DocTerm implements Comparable<DocTerm>{
     private final double tfidf;
 
     public DocTerm(String text, int tf, int df, int totalDocs) {
+        this(text, tf, df, tf * TermRanker.idf(totalDocs, df));
+    }
+
+    public DocTerm(String text, int tf, int df, double tfidf) {
         this.text = text;
         this.tf = tf;
         this.df = df;
-        this.tfidf = tf * Math.log10(totalDocs/df);
+        this.tfidf = tfidf;
     }
 
 
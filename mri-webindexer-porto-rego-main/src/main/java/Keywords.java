@@ -0,0 +1,116 @@
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Palabras clave de cada página calculadas al indexar: los n términos del body con mayor tf-idf, guardados en el
+ * campo keywords como valor almacenado y como BinaryDocValues. Leerlas después cuesta una lectura de DocValues, sin
+ * term vectors.
+ *
+ * El idf se calcula con estadísticas de la colección que se van acumulando durante la indexación (documentos
+ * procesados y documentos con cada término hasta el momento), así que es aproximado para las primeras páginas. Las
+ * estadísticas son compartidas por todos los hilos; el TermRanker no, y cada hilo usa el suyo.
+ *
+ * Formato del campo: número de términos (vInt) y, para cada uno, longitud (vInt) y bytes UTF-8 del término, tf
+ * (vInt), df (vInt) y tf-idf (float de 32 bits).
+ */
+public class Keywords {
+
+    static final String FIELD = "keywords";
+    static final String SOURCE_FIELD = "body";
+
+    private final int numKeywords;
+    private final Analyzer analyzer;
+    private final ConcurrentHashMap<BytesRef, AtomicInteger> docFreqs = new ConcurrentHashMap<>();
+    private final AtomicInteger numDocs = new AtomicInteger();
+
+    public Keywords(int numKeywords, Analyzer analyzer) {
+        this.numKeywords = numKeywords;
+        this.analyzer = analyzer;
+    }
+
+    public TermRanker newRanker() {
+        return new TermRanker(numKeywords);
+    }
+
+    /**
+     * Suma el texto del body a las estadísticas de la colección y añade al documento sus palabras clave.
+     */
+    public void addTo(Document doc, String body, TermRanker ranker) throws IOException {
+        TermCounts counts = TermCounts.analyze(analyzer, SOURCE_FIELD, new StringReader(body));
+        int docs = numDocs.incrementAndGet();
+        BytesRef scratch = new BytesRef();
+        for (int ord = 0; ord < counts.size(); ord++) {
+            BytesRef term = counts.term(ord, scratch);
+            AtomicInteger df = docFreqs.get(term);
+            if (df == null) {
+                df = docFreqs.computeIfAbsent(BytesRef.deepCopyOf(term), key -> new AtomicInteger());
+            }
+            df.incrementAndGet();
+        }
+
+        List<DocTerm> keywords = ranker.top(counts, term -> docFreqs.get(term).get(), docs);
+        BytesRef encoded = encode(keywords);
+        doc.add(new StoredField(FIELD, encoded));
+        doc.add(new BinaryDocValuesField(FIELD, encoded));
+    }
+
+    static BytesRef encode(List<DocTerm> keywords) throws IOException {
+        ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+        out.writeVInt(keywords.size());
+        for (DocTerm keyword : keywords) {
+            BytesRef text = new BytesRef(keyword.getText());
+            out.writeVInt(text.length);
+            out.writeBytes(text.bytes, text.offset, text.length);
+            out.writeVInt(keyword.getTf());
+            out.writeVInt(keyword.getDf());
+            out.writeInt(Float.floatToIntBits((float) keyword.getTfidf()));
+        }
+        return new BytesRef(out.toArrayCopy());
+    }
+
+    static List<DocTerm> decode(BytesRef encoded) {
+        ByteArrayDataInput in = new ByteArrayDataInput(encoded.bytes, encoded.offset, encoded.length);
+        int size = in.readVInt();
+        List<DocTerm> keywords = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            byte[] text = new byte[in.readVInt()];
+            in.readBytes(text, 0, text.length);
+            int tf = in.readVInt();
+            int df = in.readVInt();
+            float tfidf = Float.intBitsToFloat(in.readInt());
+            keywords.add(new DocTerm(new BytesRef(text).utf8ToString(), tf, df, tfidf));
+        }
+        return keywords;
+    }
+
+    /**
+     * Palabras clave del documento docId, de mayor a menor tf-idf. Lista vacía si se indexó sin ellas.
+     */
+    static List<DocTerm> read(IndexReader reader, int docId) throws IOException {
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+        BinaryDocValues values = DocValues.getBinary(leaf.reader(), FIELD);
+        if (!values.advanceExact(docId - leaf.docBase)) {
+            return Collections.emptyList();
+        }
+        return decode(values.binaryValue());
+    }
+}
@@ -0,0 +1,169 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TopDocs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Búsqueda casi en tiempo real (NRT) sobre el índice mientras WebIndexer lo está creando. El SearcherManager se abre
+ * desde el propio IndexWriter, así que ve los documentos añadidos aunque todavía no haya commit, y un
+ * ControlledRealTimeReopenThread lo reabre en segundo plano de forma que los resultados nunca tengan más de
+ * maxStaleSec segundos de antigüedad.
+ *
+ * Endpoints (GET, respuesta en JSON):
+ *  - /search?q=TEXTO[&field=CAMPO][&top=n]: ranking de la query (path, título y score de cada hit). Por defecto
+ *    se busca en body.
+ *  - /status: documentos visibles ahora mismo para la búsqueda y documentos añadidos al writer.
+ */
+public class NrtSearchServer implements Closeable {
+
+    private final IndexWriter writer;
+    private final Analyzer analyzer;
+    private final SearcherManager manager;
+    private final ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+    private final ExecutorService executor;
+    private final HttpServer http;
+
+    public NrtSearchServer(IndexWriter writer, Analyzer analyzer, String host, int port, double maxStaleSec, double minStaleSec)
+            throws IOException {
+        this.writer = writer;
+        this.analyzer = analyzer;
+        this.manager = new SearcherManager(writer, null);
+        this.reopenThread = new ControlledRealTimeReopenThread<>(writer, manager, maxStaleSec, minStaleSec);
+        this.reopenThread.setName("NRT reopen");
+        this.reopenThread.setDaemon(true);
+        this.reopenThread.start();
+
+        this.executor = Executors.newFixedThreadPool(2);
+        // Sin host sólo se escucha en loopback: el servidor no tiene autenticación y sirve el contenido rastreado
+        InetAddress address = host == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+        this.http = HttpServer.create(new InetSocketAddress(address, port), 0);
+        http.createContext("/search", exchange -> handle(exchange, this::search));
+        http.createContext("/status", exchange -> handle(exchange, this::status));
+        http.setExecutor(executor);
+        http.start();
+    }
+
+    private interface Handler {
+        String apply(IndexSearcher searcher, Map<String, String> params) throws IOException;
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        int status = 200;
+        String body;
+        IndexSearcher searcher = manager.acquire();
+        try {
+            body = handler.apply(searcher, parseParams(exchange.getRequestURI().getRawQuery()));
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            body = "{\"error\": " + TopTermsInField.json(String.valueOf(e.getMessage())) + "}";
+        } catch (Exception e) {
+            e.printStackTrace();
+            status = 500;
+            body = "{\"error\": " + TopTermsInField.json(e.toString()) + "}";
+        } finally {
+            manager.release(searcher);
+        }
+
+        byte[] response = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private static Map<String, String> parseParams(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private String search(IndexSearcher searcher, Map<String, String> params) throws IOException {
+        String text = params.get("q");
+        if (text == null || text.isBlank()) {
+            throw new IllegalArgumentException("Falta el parámetro q");
+        }
+        String field = params.getOrDefault("field", "body");
+        int top;
+        try {
+            top = Integer.parseInt(params.getOrDefault("top", "10"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Valor no válido para top: " + params.get("top"));
+        }
+
+        Query query;
+        try {
+            query = new QueryParser(field, analyzer).parse(text);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Error al parsear la consulta: " + e.getMessage());
+        }
+        TopDocs topDocs = searcher.search(query, top);
+
+        StoredFields storedFields = searcher.storedFields();
+        StringBuilder json = new StringBuilder();
+        json.append("{\"query\": ").append(TopTermsInField.json(query.toString()))
+                .append(", \"visibleDocs\": ").append(searcher.getIndexReader().numDocs())
+                .append(", \"totalHits\": ").append(TopTermsInField.json(topDocs.totalHits.toString()))
+                .append(", \"hits\": [");
+        for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+            ScoreDoc hit = topDocs.scoreDocs[i];
+            Document doc = storedFields.document(hit.doc);
+            String title = doc.get("title");
+            json.append(i == 0 ? "" : ", ")
+                    .append("{\"doc\": ").append(hit.doc)
+                    .append(", \"path\": ").append(TopTermsInField.json(doc.get("path")))
+                    .append(", \"title\": ").append(title == null ? "null" : TopTermsInField.json(title))
+                    .append(", \"score\": ").append(String.format(Locale.ROOT, "%.4f", hit.score))
+                    .append("}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private String status(IndexSearcher searcher, Map<String, String> params) {
+        return "{\"visibleDocs\": " + searcher.getIndexReader().numDocs()
+                + ", \"indexedDocs\": " + writer.getDocStats().numDocs
+                + ", \"segments\": " + searcher.getIndexReader().leaves().size() + "}";
+    }
+
+    /**
+     * Para el servidor y el hilo de reapertura. Hay que llamarlo antes de cerrar el IndexWriter.
+     */
+    @Override
+    public void close() throws IOException {
+        http.stop(0);
+        executor.shutdown();
+        reopenThread.close();
+        manager.close();
+    }
+}
@@ -0,0 +1,77 @@
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Frecuencias de los términos de un documento. Los términos se guardan en un BytesRefHash (tabla hash de
+ * direccionamiento abierto sobre un bloque de bytes, que asigna a cada término un ordinal consecutivo) y las
+ * frecuencias en un int[] indexado por ese ordinal, sin crear un String ni un Integer por término.
+ */
+public class TermCounts {
+
+    private final BytesRefHash terms = new BytesRefHash();
+    private int[] freqs = new int[16];
+
+    public void add(BytesRef term, int freq) {
+        int ord = terms.add(term);
+        if (ord < 0) {
+            ord = -ord - 1;     // Ya estaba: add devuelve -(ordinal + 1)
+        } else if (ord >= freqs.length) {
+            freqs = ArrayUtil.grow(freqs, ord + 1);
+        }
+        freqs[ord] += freq;
+    }
+
+    public int size() {
+        return terms.size();
+    }
+
+    /**
+     * Término con ordinal ord, en scratch (sin copiar los bytes).
+     */
+    public BytesRef term(int ord, BytesRef scratch) {
+        return terms.get(ord, scratch);
+    }
+
+    public int freq(int ord) {
+        return freqs[ord];
+    }
+
+    /**
+     * Frecuencias guardadas en el term vector del documento.
+     */
+    public static TermCounts fromTermVector(Terms vector) throws IOException {
+        TermCounts counts = new TermCounts();
+        TermsEnum termsEnum = vector.iterator();
+        BytesRef text;
+        while ((text = termsEnum.next()) != null) {
+            counts.add(text, (int) termsEnum.totalTermFreq());
+        }
+        return counts;
+    }
+
+    /**
+     * Frecuencias obtenidas analizando el texto con el mismo analyzer que se usó al indexar el campo, para los
+     * campos indexados sin term vectors.
+     */
+    public static TermCounts analyze(Analyzer analyzer, String field, Reader text) throws IOException {
+        TermCounts counts = new TermCounts();
+        try (TokenStream stream = analyzer.tokenStream(field, text)) {
+            TermToBytesRefAttribute termAtt = stream.addAttribute(TermToBytesRefAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                counts.add(termAtt.getBytesRef(), 1);
+            }
+            stream.end();
+        }
+        return counts;
+    }
+}
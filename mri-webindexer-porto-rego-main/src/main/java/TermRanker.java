@@ -0,0 +1,138 @@
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Selección de los n términos con mayor tf-idf de un documento. En vez de crear un DocTerm por término y ordenarlos
+ * todos, se mantiene un heap de mínimos de capacidad n sobre arrays paralelos (ordinal en TermCounts, tf, df y
+ * tf-idf): cada término sólo se compara con el peor de los n mejores hasta el momento, y sólo se crean DocTerm para
+ * los que quedan al final. Un mismo TermRanker se puede reutilizar para varios documentos (no es thread-safe: uno
+ * por hilo).
+ */
+public class TermRanker {
+
+    /**
+     * Número de documentos del índice en los que aparece un término.
+     */
+    public interface DocFreqs {
+        int docFreq(BytesRef term) throws IOException;
+    }
+
+    private final int[] ords;
+    private final int[] tfs;
+    private final int[] dfs;
+    private final double[] scores;
+    private int size;
+
+    public TermRanker(int n) {
+        this.ords = new int[n];
+        this.tfs = new int[n];
+        this.dfs = new int[n];
+        this.scores = new double[n];
+    }
+
+    /**
+     * idf = log10(N / df), en coma flotante.
+     */
+    public static double idf(int numDocs, int docFreq) {
+        return Math.log10((double) numDocs / docFreq);
+    }
+
+    /**
+     * Los n términos de counts con mayor tf-idf, de mayor a menor. A igualdad de tf-idf va antes el de menor ordinal
+     * (orden alfabético si counts viene de un term vector; orden de aparición si viene de analizar el texto). Los
+     * términos con df 0 (que no están en el índice) se ignoran.
+     */
+    public List<DocTerm> top(TermCounts counts, DocFreqs docFreqs, int numDocs) throws IOException {
+        size = 0;
+        BytesRef scratch = new BytesRef();
+        for (int ord = 0; ord < counts.size(); ord++) {
+            int df = docFreqs.docFreq(counts.term(ord, scratch));
+            if (df == 0) {
+                continue;
+            }
+            int tf = counts.freq(ord);
+            insert(ord, tf, df, tf * idf(numDocs, df));
+        }
+
+        // Se vacía el heap de peor a mejor rellenando el array desde el final
+        DocTerm[] top = new DocTerm[size];
+        while (size > 0) {
+            int last = size - 1;
+            top[last] = new DocTerm(counts.term(ords[0], scratch).utf8ToString(), tfs[0], dfs[0], scores[0]);
+            swap(0, last);
+            size--;
+            siftDown(0);
+        }
+        return Arrays.asList(top);
+    }
+
+    private void insert(int ord, int tf, int df, double score) {
+        if (ords.length == 0) {
+            return;
+        }
+        if (size < ords.length) {
+            set(size, ord, tf, df, score);
+            siftUp(size++);
+        } else if (worse(ords[0], scores[0], ord, score)) {
+            set(0, ord, tf, df, score);
+            siftDown(0);
+        }
+    }
+
+    // La raíz del heap es el peor término: menor tf-idf y, a igualdad, mayor ordinal
+    private static boolean worse(int ordA, double scoreA, int ordB, double scoreB) {
+        return scoreA < scoreB || (scoreA == scoreB && ordA > ordB);
+    }
+
+    private void set(int i, int ord, int tf, int df, double score) {
+        ords[i] = ord;
+        tfs[i] = tf;
+        dfs[i] = df;
+        scores[i] = score;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(ords[i], scores[i], ords[parent], scores[parent])) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                break;
+            }
+            int child = left + 1 < size && worse(ords[left + 1], scores[left + 1], ords[left], scores[left])
+                    ? left + 1 : left;
+            if (!worse(ords[child], scores[child], ords[i], scores[i])) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int ord = ords[i];
+        ords[i] = ords[j];
+        ords[j] = ord;
+        int tf = tfs[i];
+        tfs[i] = tfs[j];
+        tfs[j] = tf;
+        int df = dfs[i];
+        dfs[i] = dfs[j];
+        dfs[j] = df;
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+}
@@ -23,6 +23,7 @@ import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * For the folder given as argument, the class ThreadPool
@@ -41,15 +42,25 @@ public class ThreadPool {
         private final boolean printInfo;
         private final boolean titleTV;
         private final boolean bodyTV;
+        private final Keywords keywords;   // null si no se calculan palabras clave
+        private final TermRanker ranker;
 
         public IndexThread(final Path file, final Path docFolder, final IndexWriter writer,
                            final boolean printInfo, final boolean titleTV, final boolean bodyTV) {
+            this(file, docFolder, writer, printInfo, titleTV, bodyTV, null);
+        }
+
+        public IndexThread(final Path file, final Path docFolder, final IndexWriter writer,
+                           final boolean printInfo, final boolean titleTV, final boolean bodyTV,
+                           final Keywords keywords) {
             this.file = file.toFile();
             this.docFolder = docFolder;
             this.writer = writer;
             this.printInfo = printInfo;
             this.titleTV = titleTV;
             this.bodyTV = bodyTV;
+            this.keywords = keywords;
+            this.ranker = keywords == null ? null : keywords.newRanker();
         }
 
         /**
@@ -259,7 +270,14 @@ public class ThreadPool {
                 BufferedReader notagsReader = Files.newBufferedReader(notagsPath);
 
                 doc.add(new Field("title",notagsReader.readLine() , titleField));
-                doc.add(new Field("body", notagsReader, bodyField));
+                if (keywords == null) {
+                    doc.add(new Field("body", notagsReader, bodyField));
+                } else {
+                    // El body se lee entero porque se analiza dos veces: al indexarlo y para sacar sus palabras clave
+                    String body = notagsReader.lines().collect(Collectors.joining("\n"));
+                    doc.add(new Field("body", body, bodyField));
+                    keywords.addTo(doc, body, ranker);
+                }
 
 
                 // Añadir el documento al índice
@@ -279,6 +297,13 @@ public class ThreadPool {
     public static void createIndexThreads(final Path urlPath, final Path docsPath, final IndexWriter writer,
                                           final boolean threadInfo, final int numThreads,
                                           final boolean titleTermVectors, final boolean bodyTermVectors) {
+        createIndexThreads(urlPath, docsPath, writer, threadInfo, numThreads, titleTermVectors, bodyTermVectors, null);
+    }
+
+    public static void createIndexThreads(final Path urlPath, final Path docsPath, final IndexWriter writer,
+                                          final boolean threadInfo, final int numThreads,
+                                          final boolean titleTermVectors, final boolean bodyTermVectors,
+                                          final Keywords keywords) {
 
         /*
          * Create a ExecutorService (ThreadPool is a subclass of ExecutorService) with
@@ -299,7 +324,7 @@ public class ThreadPool {
             /* We process each subfolder in a new thread. */
             for (final Path file: stream) {
                 if (Files.isReadable(file) && Files.isRegularFile(file)) {
-                    final Runnable worker = new IndexThread(file, docsPath, writer, threadInfo, titleTermVectors, bodyTermVectors);
+                    final Runnable worker = new IndexThread(file, docsPath, writer, threadInfo, titleTermVectors, bodyTermVectors, keywords);
                     /*
                      * Send the thread to the ThreadPool. It will be processed eventually.
                      */
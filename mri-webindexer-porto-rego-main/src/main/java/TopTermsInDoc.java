@@ -1,18 +1,26 @@
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Path;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TopTermsInDoc {
 
@@ -20,67 +28,94 @@ public class TopTermsInDoc {
 
         String usage =
                 "TopTermsInDoc"
-                        + " [-index INDEX_PATH] [-field FIELD] [-url URL] [-top n] [-outfile OUTFILE]\n\n"
-                        + "[\"Busca en el índice ubicado en INDEX_PATH los n documentos más relevantes en el campo FIELD" +
-                        " del documento que corresponda a la url URL y los escribe en pantalla y en OUTFILE\"]\n";
+                        + " [-index INDEX_PATH] [-field FIELD] [-url URL] [-urls URLS_FILE] [-docID n] [-docIDs DOCIDS_FILE]"
+                        + " [-top n] [-outfile OUTFILE] [-numThreads n] [-cacheSize n] [-analyzer Analyzer]"
+                        + " [-directory " + IndexDirectories.USAGE + "]\n\n"
+                        + "[\"Busca en el índice ubicado en INDEX_PATH los n términos más relevantes en el campo FIELD" +
+                        " de cada documento indicado, por url (URL o una por línea en URLS_FILE) o por docID (n o uno por línea" +
+                        " en DOCIDS_FILE), y los escribe en pantalla y en OUTFILE. Si el campo no tiene term vectors se vuelve a" +
+                        " analizar su texto con Analyzer (por defecto, el que se usó al crear el índice). Con -field keywords se" +
+                        " muestran las palabras clave calculadas al indexar con WebIndexer -keywords\"]\n";
 
         String indexPath = null;
         String field = null;
-        String url = null;
+        List<String> urls = new ArrayList<>();
+        List<Integer> docIds = new ArrayList<>();
         int numTerms = 10;    //Dato por defecto
         String outfile = "termsDoc.txt";
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        int cacheSize = 100_000;
+        String analyzerName = null;
+        String directoryType = null;
 
         IndexReader reader = null;
         Directory dir = null;
-        IndexSearcher searcher = null;
-        StoredFields storedFields = null;
-
-        for (int i = 0; i < args.length; i++) {
-            switch (args[i]) {
-                case "-index":
-                    indexPath = args[++i];
-                    break;
-                case "-field":
-                    field = args[++i];
-                    break;
-                case "-url":
-                    url = args[++i];
-                    break;
-                case "-top":
-                    numTerms = Integer.parseInt(args[++i]);
-                    break;
-                case "-outfile":
-                    outfile = args[++i];
-                    break;
-                default:
-                    throw new IllegalArgumentException("Parámetro desconocido: " + args[i]);
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-index":
+                        indexPath = args[++i];
+                        break;
+                    case "-field":
+                        field = args[++i];
+                        break;
+                    case "-url":
+                        urls.add(args[++i]);
+                        break;
+                    case "-urls":
+                        urls.addAll(readLines(args[++i]));
+                        break;
+                    case "-docID":
+                        docIds.add(Integer.parseInt(args[++i]));
+                        break;
+                    case "-docIDs":
+                        for (String line : readLines(args[++i])) {
+                            docIds.add(Integer.parseInt(line));
+                        }
+                        break;
+                    case "-top":
+                        numTerms = Integer.parseInt(args[++i]);
+                        break;
+                    case "-outfile":
+                        outfile = args[++i];
+                        break;
+                    case "-numThreads":
+                        numThreads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-cacheSize":
+                        cacheSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "-directory":
+                        directoryType = args[++i];
+                        break;
+                    case "-analyzer":
+                        analyzerName = args[++i];
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Parámetro desconocido: " + args[i]);
+                }
             }
+        } catch (IOException e) {
+            System.err.println("No se pudo leer la lista de documentos: " + e);
+            System.exit(1);
         }
 
-        if (indexPath == null || field == null || url == null) {
+        if (indexPath == null || field == null || (urls.isEmpty() && docIds.isEmpty())) {
             System.err.println(usage);
             return;
         }
 
-        if(!url.contains("://")){
-            System.out.println("La url debe comenzar por \"http://\" o \"https://\"");
-        }
-
-
-        String file = url.split("://")[1];  // Le quita el"http://" o el "https://" al nombre de la url de entrada.
-        if (file.endsWith("/") || file.endsWith("\\")) {
-            file = file.substring(0, file.length() - 1);
-        }
-
-        //Reemplazamos las "/" por "_" para que el sistema operativo no piense que es un directorio
-        file = file.replace("/", "_");
-
-        file = file + ".loc";   // Añade la extensio ".loc" a la url sin "https://".
-
+        long openNanos = 0;
         try{
-            dir = FSDirectory.open(Paths.get(indexPath));   // Abrimos el directorio IndexFile
+            long openStart = System.nanoTime();
+            dir = IndexDirectories.open(Paths.get(indexPath), directoryType);   // Abrimos el directorio IndexFile
             reader = DirectoryReader.open(dir);             // Obtenemos el reader
-            storedFields = reader.storedFields();
+            openNanos = System.nanoTime() - openStart;
+        }
+        catch (IllegalArgumentException e1) {
+            System.err.println(e1.getMessage());
+            System.exit(1);
         }
         catch (CorruptIndexException e1) {
             System.out.println("No se pudo abrir el índice: excepción " + e1);
@@ -92,84 +127,304 @@ public class TopTermsInDoc {
             System.exit(1);
         }
 
-        searcher = new IndexSearcher(reader);
-
+        Analyzer analyzer = null;
         try {
-            // Toma un documento arbitrario para sacar su campo path
-            Document arbitraryDoc = storedFields.document(0);
-            Path arbitraryPath = Path.of(arbitraryDoc.get("path"));
-
-            // Con el campo path podemos obtener la ruta a DocFiles si quitamos el último /<algo>
-            String docFolder = arbitraryPath.getParent().toString();
-            file = Paths.get(docFolder, file).toString();
-
-            TermQuery query = new TermQuery(new Term("path", file));
-            ScoreDoc[] docs = searcher.search(query, 1).scoreDocs;
+            analyzer = analyzerName != null ? WebIndexer.analyzerFromName(analyzerName) : indexAnalyzer(reader);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("No se pudo crear el analyzer: " + e.getMessage());
+            System.exit(1);
+        }
+        if (analyzer == null) {
+            System.err.println("Analyzer " + analyzerName + " no permitido. Los analyzers permitidos son: Standard, Spanish y English");
+            System.exit(1);
+        }
 
-            if (docs.length == 0) {
-                System.err.println("No se encontró un documento para la url " + url);
-                return;
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        long start = System.nanoTime();
+        try {
+            // Todas las urls se resuelven a docIDs con una sola pasada por el diccionario del campo path
+            Map<String, Integer> urlDocs = resolveUrls(reader, urls);
+
+            final IndexReader indexReader = reader;
+            final String termsField = field;
+            final int n = numTerms;
+            final DocFreqCache cache = new DocFreqCache(reader, field, cacheSize);
+            final Analyzer fieldAnalyzer = analyzer;
+
+            List<String> headers = new ArrayList<>();
+            List<Future<List<DocTerm>>> results = new ArrayList<>();
+            for (String url : urls) {
+                Integer docId = urlDocs.get(url);
+                if (docId == null) {
+                    headers.add(null);
+                    results.add(null);
+                    if (locFileName(url) != null) {
+                        System.err.println("No se encontró un documento para la url " + url);
+                    }
+                    continue;
+                }
+                headers.add("Top " + numTerms + " términos para el documento con URL: " + url + "(docID " + docId + ")\n");
+                results.add(executor.submit(() -> topTerms(indexReader, docId, termsField, n, cache, fieldAnalyzer)));
+            }
+            for (int docId : docIds) {
+                if (docId < 0 || docId >= reader.maxDoc()) {
+                    headers.add(null);
+                    results.add(null);
+                    System.err.println("No existe el documento con docID " + docId);
+                    continue;
+                }
+                headers.add("Top " + numTerms + " términos para el documento con docID " + docId + "\n");
+                results.add(executor.submit(() -> topTerms(indexReader, docId, termsField, n, cache, fieldAnalyzer)));
             }
 
-            int docId = docs[0].doc;    // Conseguimos el docId del documento correspondiente a la url dada de entrada
-
-            // Devuelve un map de todos los terminos de un campo y las veces que salen dentro del documento con docID
-            Map<String, Integer> frequencies = TopTermsInDoc.getTermFrequencies(reader, docId, field);
+            // Los resultados se escriben en el orden de entrada
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(outfile))) {
+                for (int i = 0; i < results.size(); i++) {
+                    if (results.get(i) == null) {
+                        continue;
+                    }
+                    List<DocTerm> terms;
+                    try {
+                        terms = results.get(i).get();
+                    } catch (ExecutionException e) {
+                        System.err.println(headers.get(i).trim() + ": " + e.getCause().getMessage());
+                        continue;
+                    }
+                    writer.write(headers.get(i));
+                    System.out.print(headers.get(i));
+                    for (DocTerm dt : terms) {
+                        writer.write(dt.toString());
+                        System.out.print(dt.toString());
+                    }
+                }
+            }
 
-            PriorityQueue<DocTerm> orderedTerms = new PriorityQueue<>(Collections.reverseOrder());
+            if (results.size() > 1) {
+                System.out.println("Caché de docFreq: " + cache.hits.get() + " aciertos, " + cache.misses.get() + " fallos");
+            }
+            System.out.println(IndexDirectories.openTime(dir, directoryType, openNanos) + String.format(Locale.ROOT,
+                    "\tTérminos de %d documentos: %.1f ms", results.size(), (System.nanoTime() - start) / 1e6));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+            try {
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-            int numDocs = reader.numDocs(); // Numero de documentos.
+    private static List<String> readLines(String file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            if (!line.isBlank()) {
+                lines.add(line.trim());
+            }
+        }
+        return lines;
+    }
 
-            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
-                String term = entry.getKey();       // Nombre del termino.
-                int termFreq = entry.getValue();    // Frecuencia del termino en cuestion en este campo.
-                int docFreq = reader.docFreq(new Term(field, term));    // Número de coumentos en los cuales aparece el temrino.
+    /**
+     * Nombre del fichero .loc que ThreadPool crea para la url: sin el protocolo, sin la barra final y con las "/"
+     * cambiadas por "_". Devuelve null si la url no tiene protocolo.
+     */
+    static String locFileName(String url) {
+        if (!url.contains("://")) {
+            return null;
+        }
+        String file = url.split("://")[1];  // Le quita el"http://" o el "https://" al nombre de la url de entrada.
+        if (file.endsWith("/") || file.endsWith("\\")) {
+            file = file.substring(0, file.length() - 1);
+        }
+        //Reemplazamos las "/" por "_" para que el sistema operativo no piense que es un directorio
+        return file.replace("/", "_") + ".loc";
+    }
 
-                orderedTerms.add(new DocTerm(term, termFreq, docFreq, numDocs));
+    /**
+     * docID de cada url. Se recorre una sola vez el diccionario de términos del campo path de cada hoja y se compara
+     * el nombre de fichero de cada path (lo que va tras la última barra) con los de las urls buscadas, así que no se
+     * supone que todos los documentos estén en la misma carpeta. Si hay varios documentos para una url se queda
+     * con el primero que no esté borrado.
+     */
+    static Map<String, Integer> resolveUrls(IndexReader reader, List<String> urls) throws IOException {
+        Map<BytesRef, List<String>> wanted = new HashMap<>();
+        for (String url : urls) {
+            String file = locFileName(url);
+            if (file == null) {
+                System.out.println("La url debe comenzar por \"http://\" o \"https://\": " + url);
+                continue;
             }
+            wanted.computeIfAbsent(new BytesRef(file), key -> new ArrayList<>()).add(url);
+        }
 
+        Map<String, Integer> docs = new HashMap<>();
+        if (wanted.isEmpty()) {
+            return docs;
+        }
+        BytesRef fileName = new BytesRef();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            Terms terms = leaf.reader().terms("path");
+            if (terms == null) {
+                continue;
+            }
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            TermsEnum termsEnum = terms.iterator();
+            PostingsEnum postings = null;
+            BytesRef path;
+            while ((path = termsEnum.next()) != null) {
+                // Vista sobre el nombre de fichero, sin copiar el término
+                int start = path.offset + path.length;
+                while (start > path.offset && path.bytes[start - 1] != '/' && path.bytes[start - 1] != '\\') {
+                    start--;
+                }
+                fileName.bytes = path.bytes;
+                fileName.offset = start;
+                fileName.length = path.offset + path.length - start;
 
-            // Write the top terms to the output file
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(outfile))) {
-                writer.write("Top " + numTerms + " términos para el documento con URL: " + url + "(docID " + docId +")\n");
-                int count = 0;
-                while (!orderedTerms.isEmpty() && count < numTerms) {
-                    DocTerm dt = orderedTerms.poll();
+                List<String> matches = wanted.get(fileName);
+                if (matches == null) {
+                    continue;
+                }
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    if (liveDocs == null || liveDocs.get(doc)) {
+                        for (String url : matches) {
+                            docs.putIfAbsent(url, leaf.docBase + doc);
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+        return docs;
+    }
 
-                    /*String term = dt.getText();
-                    int tf = dt.getTf();
-                    int df = dt.getDf();
-                    double tfIdf= dt.getTfidf();*/
+    /**
+     * Los n términos del campo con mayor tf-idf en el documento.
+     */
+    static List<DocTerm> topTerms(IndexReader reader, int docId, String field, int n, DocFreqCache cache,
+                                  Analyzer analyzer) throws IOException {
+        if (field.equals(Keywords.FIELD)) {
+            // Calculadas al indexar: basta con leerlas de los DocValues
+            List<DocTerm> keywords = Keywords.read(reader, docId);
+            return keywords.subList(0, Math.min(n, keywords.size()));
+        }
+        // Frecuencias de todos los terminos del campo dentro del documento con docID
+        TermCounts frequencies = TopTermsInDoc.getTermFrequencies(reader, docId, field, analyzer);
+        return new TermRanker(n).top(frequencies, cache, reader.numDocs());
+    }
 
+    /**
+     * Frecuencias de los términos del campo en el documento. Se leen del term vector si el campo lo tiene; si no, se
+     * vuelve a analizar el texto con el analyzer del índice: el valor almacenado del campo o, si no se almacenó, el
+     * fichero del que lo sacó ThreadPool (el .loc para contents y la primera línea o el resto del .loc.notags para
+     * title y body).
+     */
+    private static TermCounts getTermFrequencies(IndexReader reader, int docId, String field, Analyzer analyzer) throws IOException {
+        TermVectors termVectors = reader.termVectors();
+        Terms vector = termVectors.get(docId, field);
+        if (vector != null) {
+            return TermCounts.fromTermVector(vector);
+        }
 
-                    writer.write(dt.toString());
-                    System.out.print(dt.toString());
-                    count++;
+        Document doc = reader.storedFields().document(docId);
+        String[] values = doc.getValues(field);
+        if (values.length > 0) {
+            TermCounts counts = new TermCounts();
+            for (String value : values) {
+                TermCounts valueCounts = TermCounts.analyze(analyzer, field, new StringReader(value));
+                BytesRef scratch = new BytesRef();
+                for (int ord = 0; ord < valueCounts.size(); ord++) {
+                    counts.add(valueCounts.term(ord, scratch), valueCounts.freq(ord));
                 }
             }
+            return counts;
+        }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+        String path = doc.get("path");
+        if (path == null) {
+            throw new IllegalStateException("El campo " + field + " no tiene term vectors ni se puede recuperar su texto");
+        }
+        switch (field) {
+            case "contents":
+                try (Reader text = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+                    return TermCounts.analyze(analyzer, field, text);
+                }
+            case "title":
+            case "body":
+                try (BufferedReader text = Files.newBufferedReader(Paths.get(path + ".notags"), StandardCharsets.UTF_8)) {
+                    String title = text.readLine();
+                    if (field.equals("title")) {
+                        return TermCounts.analyze(analyzer, field, new StringReader(title == null ? "" : title));
+                    }
+                    return TermCounts.analyze(analyzer, field, text);
+                }
+            default:
+                throw new IllegalStateException("El campo " + field + " no tiene term vectors ni se puede recuperar su texto");
         }
     }
 
-    private static Map<String, Integer> getTermFrequencies(IndexReader reader, int docId, String field) throws IOException {
-        TermVectors termVectors = reader.termVectors();
-           Terms vector = termVectors.get(docId, field);
-        if(vector == null){
-            System.err.println("No se han creado term vectors para este campo del índice");
-            System.exit(1);
+    /**
+     * Analyzer con el que se creó el índice, según los datos del commit que guarda WebIndexer: la configuración de
+     * AnalyzerConfig si se indexó con una, o el nombre del analyzer. Los índices anteriores no lo guardan y se crearon
+     * con el analyzer por defecto (standard).
+     */
+    static Analyzer indexAnalyzer(IndexReader reader) throws IOException {
+        String name = "standard";
+        if (reader instanceof DirectoryReader) {
+            Map<String, String> userData = ((DirectoryReader) reader).getIndexCommit().getUserData();
+            AnalyzerConfig config = AnalyzerConfig.fromCommitData(userData);
+            if (config != null) {
+                return config.build();
+            }
+            name = userData.getOrDefault(WebIndexer.ANALYZER_KEY, name);
         }
+        return WebIndexer.analyzerFromName(name);
+    }
 
-        TermsEnum termsEnum = null;
-        termsEnum = vector.iterator();
-        Map<String, Integer> frequencies = new HashMap<>();
-        BytesRef text = null;
-        while ((text = termsEnum.next()) != null) {
-            String term = text.utf8ToString();
-            int freq = (int) termsEnum.totalTermFreq();
-            frequencies.put(term, freq);
+    /**
+     * Caché LRU acotada de docFreq de los términos de un campo, compartida por los hilos que procesan los documentos.
+     * Los términos frecuentes se repiten en casi todos los documentos, así que la mayoría de consultas al
+     * diccionario de términos se evitan.
+     */
+    static class DocFreqCache implements TermRanker.DocFreqs {
+        private final IndexReader reader;
+        private final String field;
+        private final Map<BytesRef, Integer> cache;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+
+        DocFreqCache(IndexReader reader, String field, int maxSize) {
+            this.reader = reader;
+            this.field = field;
+            this.cache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<BytesRef, Integer> eldest) {
+                    return size() > maxSize;
+                }
+            });
+        }
+
+        /**
+         * term puede ser una vista reutilizable: sólo se copia al guardarlo en la caché.
+         */
+        @Override
+        public int docFreq(BytesRef term) throws IOException {
+            Integer df = cache.get(term);
+            if (df != null) {
+                hits.incrementAndGet();
+                return df;
+            }
+            misses.incrementAndGet();
+            // Fuera del lock: si dos hilos fallan a la vez, los dos consultan el índice y guardan el mismo valor
+            BytesRef key = BytesRef.deepCopyOf(term);
+            df = reader.docFreq(new Term(field, key));
+            cache.put(key, df);
+            return df;
         }
-        return frequencies;
     }
 }
@@ -1,27 +1,66 @@
 import org.apache.lucene.index.*;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class TopTermsInField {
 
+    /**
+     * Estadístico por el que se ordenan los términos: número de documentos (df), número total de apariciones (ttf)
+     * o ttf ponderado por la idf del término en la colección, con idf = 1 + ln((N + 1) / (df + 1)) y N el número
+     * de documentos con el campo.
+     */
+    enum Stat {
+        DF, TTF, TFIDF;
+
+        static Stat parse(String name) {
+            switch (name.toLowerCase()) {
+                case "df":
+                    return DF;
+                case "ttf":
+                    return TTF;
+                case "tfidf":
+                case "tf-idf":
+                    return TFIDF;
+                default:
+                    throw new IllegalArgumentException("Estadístico no reconocido " + name + " (df, ttf o tfidf)");
+            }
+        }
+
+        String label() {
+            return this == TFIDF ? "tf-idf" : name().toLowerCase();
+        }
+    }
+
     public static void main(String [] args) throws IOException{
 
         String usage =
                 "TopTermsInField"
-                        + " [-index INDEX_PATH] [-field FIELD] [-top n] [-outfile OUTFILE]\n\n"
-                        + "[\"Busca en el índice ubicado en INDEX_PATH los n términos del campo FIELD que aparecen en un mayor número de documentos" +
-                        " y los escribe en pantalla y en OUTFILE\"]\n";
+                        + " [-index INDEX_PATH] [-field FIELD[,FIELD...]] [-stat df|ttf|tfidf[,...]] [-top n]"
+                        + " [-outfile OUTFILE(.txt|.csv|.json)] [-numThreads n] [-directory " + IndexDirectories.USAGE + "]\n\n"
+                        + "[\"Busca en el índice ubicado en INDEX_PATH los n términos de cada campo FIELD con mayor valor de cada" +
+                        " estadístico (por defecto df: los que aparecen en un mayor número de documentos) y los escribe en pantalla" +
+                        " y en OUTFILE, junto con las estadísticas de cada campo. Todos los campos y estadísticos se calculan" +
+                        " recorriendo una sola vez el diccionario de términos de cada campo\"]\n";
 
         String indexPath = null;
-        String field = null;
+        List<String> fields = new ArrayList<>();
+        List<Stat> stats = new ArrayList<>();
         int numTerms = 10;
         String outfile = "termsField.txt";
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        String directoryType = null;
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -29,7 +68,12 @@ public class TopTermsInField {
                     indexPath = args[++i];
                     break;
                 case "-field":
-                    field = args[++i];
+                    fields.addAll(Arrays.asList(args[++i].split(",")));
+                    break;
+                case "-stat":
+                    for (String stat : args[++i].split(",")) {
+                        stats.add(Stat.parse(stat.trim()));
+                    }
                     break;
                 case "-top":
                     numTerms = Integer.parseInt(args[++i]);
@@ -37,22 +81,37 @@ public class TopTermsInField {
                 case "-outfile":
                     outfile = args[++i];
                     break;
+                case "-numThreads":
+                    numThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-directory":
+                    directoryType = args[++i];
+                    break;
                 default:
                     throw new IllegalArgumentException("Parámetro no reconocido " + args[i]);
             }
         }
 
-        if (indexPath == null || field == null) {
+        if (indexPath == null || fields.isEmpty()) {
             System.err.println(usage);
             return;
         }
+        if (stats.isEmpty()) {
+            stats.add(Stat.DF);
+        }
 
         Directory dir = null;
         DirectoryReader indexReader = null;
+        long openNanos = 0;
 
         try {
-            dir = FSDirectory.open(Paths.get(indexPath));
+            long openStart = System.nanoTime();
+            dir = IndexDirectories.open(Paths.get(indexPath), directoryType);
             indexReader = DirectoryReader.open(dir);
+            openNanos = System.nanoTime() - openStart;
+        } catch (IllegalArgumentException e1) {
+            System.err.println(e1.getMessage());
+            System.exit(1);
         } catch (CorruptIndexException e1) {
             System.out.println("No se pudo abrir el índice: excepción " + e1);
             e1.printStackTrace();
@@ -63,62 +122,375 @@ public class TopTermsInField {
             System.exit(1);
         }
 
-        Map<String, Integer> foundTerms = new HashMap<>();
+        //Los LeafReader pertenecen al DirectoryReader: se cierran con él, no uno a uno
+        FieldInfos fieldInfos = FieldInfos.getMergedFieldInfos(indexReader);
+        Map<String, List<Terms>> fieldTerms = new LinkedHashMap<>();
+        for (String field : fields) {
+            List<Terms> leafTerms = new ArrayList<>();
+            for (final LeafReaderContext leaf : indexReader.leaves()) {
+                final Terms terms = leaf.reader().terms(field);
+                if (terms != null && terms.size() != 0) {
+                    leafTerms.add(terms);
+                }
+            }
+            if (leafTerms.isEmpty()) {
+                if (fieldInfos.fieldInfo(field) == null) {
+                    System.out.println("El campo " + field + " no es un campo del índice");
+                } else {
+                    System.out.println("No existen términos almacenados para el campo " + field);
+                }
+                continue;
+            }
+            fieldTerms.put(field, leafTerms);
+        }
 
-        for(final LeafReaderContext leaf : indexReader.leaves()) {
-            try (LeafReader leafReader = leaf.reader()) {
+        if (fieldTerms.isEmpty()) {
+            indexReader.close();
+            System.exit(0);
+        }
 
-                final Terms terms = leafReader.terms(field);
+        List<FieldResult> results = null;
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        long scanNanos = 0;
+        try {
+            long scanStart = System.nanoTime();
+            results = topTerms(fieldTerms, stats, numTerms, executor);
+            scanNanos = System.nanoTime() - scanStart;
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            executor.shutdown();
+            indexReader.close();
+        }
 
-                if(terms == null){
-                    System.out.println("El campo " + field + " no es un campo del índice");
-                    System.exit(0);
-                }
-                if(terms.size() == 0){
-                    System.out.println("No existen términos almacenados para el campo " + field);
-                    System.exit(0);
+        String text = formatText(results, numTerms);
+        System.out.print(text);
+        System.out.println(IndexDirectories.openTime(dir, directoryType, openNanos)
+                + String.format(Locale.ROOT, "\tRecorrido de los términos: %.1f ms", scanNanos / 1e6));
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(outfile))) {
+            if (outfile.toLowerCase().endsWith(".csv")) {
+                writeCsv(writer, results);
+            } else if (outfile.toLowerCase().endsWith(".json")) {
+                writeJson(writer, results);
+            } else {
+                writer.write(text);
+            }
+        }
+
+    }
+
+    /**
+     * Para cada campo, sus estadísticas y los n términos con mayor valor de cada estadístico sumando todas las hojas,
+     * de mayor a menor (a igualdad, en orden de término).
+     *
+     * El espacio de términos de cada campo se divide en rangos según el primer byte. Cada rango se procesa en un hilo
+     * con una mezcla k-way de los TermsEnum de todas las hojas (en orden de BytesRef, así cada término se ve una sola
+     * vez con sus frecuencias totales) y un heap de mínimos de tamaño n por estadístico. No se guarda ningún mapa con
+     * el vocabulario: la memoria depende del número de hojas, de estadísticos y de n, no del número de términos distintos.
+     */
+    static List<FieldResult> topTerms(Map<String, List<Terms>> fieldTerms, List<Stat> stats, int n,
+                                      ExecutorService executor) throws IOException, InterruptedException, ExecutionException {
+        Map<FieldResult, List<Future<RangeResult>>> pending = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Terms>> entry : fieldTerms.entrySet()) {
+            FieldResult field = new FieldResult(entry.getKey(), stats);
+            for (Terms terms : entry.getValue()) {
+                field.docCount += terms.getDocCount();
+                field.sumDocFreq += terms.getSumDocFreq();
+                field.sumTotalTermFreq += terms.getSumTotalTermFreq();
+            }
+
+            List<Future<RangeResult>> ranges = new ArrayList<>();
+            for (int b = 0; b < 256; b++) {
+                BytesRef lower = b == 0 ? new BytesRef() : new BytesRef(new byte[]{(byte) b});
+                BytesRef upper = b == 255 ? null : new BytesRef(new byte[]{(byte) (b + 1)});
+                ranges.add(executor.submit(new RangeTask(entry.getValue(), lower, upper, stats, n, field.docCount)));
+            }
+            pending.put(field, ranges);
+        }
+
+        List<FieldResult> results = new ArrayList<>();
+        for (Map.Entry<FieldResult, List<Future<RangeResult>>> entry : pending.entrySet()) {
+            FieldResult field = entry.getKey();
+            List<PriorityQueue<TermCount>> tops = new ArrayList<>();
+            for (Stat stat : stats) {
+                tops.add(new PriorityQueue<>(n + 1, TermCount.worstFirst(stat)));
+            }
+            for (Future<RangeResult> range : entry.getValue()) {
+                RangeResult result = range.get();
+                field.uniqueTerms += result.uniqueTerms;
+                for (int s = 0; s < stats.size(); s++) {
+                    for (TermCount term : result.tops.get(s)) {
+                        offer(tops.get(s), term, stats.get(s), n);
+                    }
                 }
+            }
+            for (int s = 0; s < stats.size(); s++) {
+                List<TermCount> ordered = new ArrayList<>(tops.get(s));
+                ordered.sort(TermCount.worstFirst(stats.get(s)).reversed());
+                field.topTerms.put(stats.get(s), ordered);
+            }
+            results.add(field);
+        }
+        return results;
+    }
 
-                final TermsEnum termsEnum = terms.iterator();
+    private static void offer(PriorityQueue<TermCount> top, TermCount term, Stat stat, int n) {
+        if (top.size() < n) {
+            top.add(term);
+        } else if (n > 0 && TermCount.worstFirst(stat).compare(top.peek(), term) < 0) {
+            top.poll();
+            top.add(term);
+        }
+    }
 
-                while (termsEnum.next() != null) {
+    private static String formatText(List<FieldResult> results, int numTerms) {
+        StringBuilder text = new StringBuilder();
+        for (FieldResult field : results) {
+            text.append(String.format(Locale.ROOT, "Campo: %s\tdocumentos: %d\ttérminos distintos: %d\tsumDocFreq: %d" +
+                            "\tsumTotalTermFreq: %d\n", field.field, field.docCount, field.uniqueTerms, field.sumDocFreq,
+                    field.sumTotalTermFreq));
+            for (Map.Entry<Stat, List<TermCount>> entry : field.topTerms.entrySet()) {
+                text.append("Top ").append(numTerms).append(" términos en el campo: ").append(field.field)
+                        .append(" por ").append(entry.getKey().label()).append("\n");
+                for (TermCount term : entry.getValue()) {
+                    text.append(String.format(Locale.ROOT, "Término: \t%-10s df:\t %-10d ttf:\t %-10d tf-idf:\t %.4f\n",
+                            term.term.get().utf8ToString(), term.df, term.ttf, term.tfidf));
+                }
+            }
+            text.append("\n");
+        }
+        return text.toString();
+    }
 
-                    final String tt = termsEnum.term().utf8ToString();
-                    int freq = termsEnum.docFreq();
+    private static void writeCsv(BufferedWriter writer, List<FieldResult> results) throws IOException {
+        writer.write("field,stat,rank,term,df,ttf,tfidf,fieldDocCount,fieldUniqueTerms,fieldSumDocFreq,fieldSumTotalTermFreq\n");
+        for (FieldResult field : results) {
+            for (Map.Entry<Stat, List<TermCount>> entry : field.topTerms.entrySet()) {
+                int rank = 1;
+                for (TermCount term : entry.getValue()) {
+                    writer.write(String.format(Locale.ROOT, "%s,%s,%d,%s,%d,%d,%.6f,%d,%d,%d,%d\n", csv(field.field),
+                            entry.getKey().label(), rank++, csv(term.term.get().utf8ToString()), term.df, term.ttf,
+                            term.tfidf, field.docCount, field.uniqueTerms, field.sumDocFreq, field.sumTotalTermFreq));
+                }
+            }
+        }
+    }
 
-                    /*Cada término puede aparecer en distintos leafContext, por lo que se hace lo siguiente:
-                    -Si el término no está en el mapa, se añade a él
-                    -Si el término está en el mapa, se añade la frecuencia encontrada a la que hay en el mapa
-                    */
-                    foundTerms.compute(tt, (key, value) -> (value == null) ? freq: value + freq);
+    private static void writeJson(BufferedWriter writer, List<FieldResult> results) throws IOException {
+        writer.write("{\n  \"fields\": [");
+        for (int f = 0; f < results.size(); f++) {
+            FieldResult field = results.get(f);
+            writer.write(f == 0 ? "\n" : ",\n");
+            writer.write(String.format(Locale.ROOT, "    {\"field\": %s, \"docCount\": %d, \"uniqueTerms\": %d," +
+                            " \"sumDocFreq\": %d, \"sumTotalTermFreq\": %d, \"top\": {", json(field.field), field.docCount,
+                    field.uniqueTerms, field.sumDocFreq, field.sumTotalTermFreq));
+            int s = 0;
+            for (Map.Entry<Stat, List<TermCount>> entry : field.topTerms.entrySet()) {
+                writer.write((s++ == 0 ? "\n" : ",\n") + "      " + json(entry.getKey().label()) + ": [");
+                int t = 0;
+                for (TermCount term : entry.getValue()) {
+                    writer.write(String.format(Locale.ROOT, "%s\n        {\"term\": %s, \"df\": %d, \"ttf\": %d, \"tfidf\": %.6f}",
+                            t++ == 0 ? "" : ",", json(term.term.get().utf8ToString()), term.df, term.ttf, term.tfidf));
                 }
+                writer.write(t == 0 ? "]" : "\n      ]");
             }
+            writer.write("\n    }}");
         }
+        writer.write("\n  ]\n}\n");
+    }
 
-        //Para que se pongan en orden descendente, hacemos un comparador que ordene de mayor a menor freq
-        //compareTo por defecto ordena de menor a mayor
-        Comparator<Map.Entry<String, Integer>> comparator = (entry1, entry2) -> entry2.getValue().compareTo(entry1.getValue());
-        PriorityQueue<Map.Entry<String, Integer>> orderedTerms = new PriorityQueue<>(comparator);
+    private static String csv(String value) {
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
 
+    static String json(String value) {
+        StringBuilder escaped = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    escaped.append("\\\"");
+                    break;
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        escaped.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+            }
+        }
+        return escaped.append('"').toString();
+    }
 
-        orderedTerms.addAll(foundTerms.entrySet());
+    static class FieldResult {
+        final String field;
+        final Map<Stat, List<TermCount>> topTerms = new LinkedHashMap<>();
+        long docCount;
+        long uniqueTerms;
+        long sumDocFreq;
+        long sumTotalTermFreq;
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(outfile))) {
-            writer.write("Top " + numTerms + " términos en el campo: " + field + "\n");
-            int count = 0;
-            while (!orderedTerms.isEmpty() && count < numTerms) {
-                Map.Entry<String, Integer> term = orderedTerms.poll();
+        FieldResult(String field, List<Stat> stats) {
+            this.field = field;
+            for (Stat stat : stats) {
+                topTerms.put(stat, List.of());
+            }
+        }
+    }
 
-                String text = term.getKey();
-                int df = term.getValue();
+    static class TermCount {
+        final BytesRefBuilder term = new BytesRefBuilder();
+        long df;
+        long ttf;
+        double tfidf;
 
-                String textToWrite = String.format("Término: \t%-10s df:\t %-10d\n", text, df);
+        double get(Stat stat) {
+            switch (stat) {
+                case DF:
+                    return df;
+                case TTF:
+                    return ttf;
+                default:
+                    return tfidf;
+            }
+        }
 
-                writer.write(textToWrite);
-                System.out.print(textToWrite);
-                count++;
+        //Menor valor primero; a igualdad de valor, el término mayor es el peor
+        static Comparator<TermCount> worstFirst(Stat stat) {
+            return Comparator.<TermCount>comparingDouble(t -> t.get(stat))
+                    .thenComparing((t1, t2) -> t2.term.get().compareTo(t1.term.get()));
+        }
+    }
+
+    /**
+     * Hoja en la mezcla k-way: su TermsEnum y el término en el que está posicionado.
+     */
+    private static class LeafEnum {
+        final TermsEnum termsEnum;
+        BytesRef term;
+
+        LeafEnum(TermsEnum termsEnum, BytesRef term) {
+            this.termsEnum = termsEnum;
+            this.term = term;
+        }
+    }
+
+    private static class RangeResult {
+        final List<PriorityQueue<TermCount>> tops;
+        final long uniqueTerms;
+
+        RangeResult(List<PriorityQueue<TermCount>> tops, long uniqueTerms) {
+            this.tops = tops;
+            this.uniqueTerms = uniqueTerms;
+        }
+    }
+
+    /**
+     * Términos en [lower, upper) de todas las hojas (upper null = sin límite), con sus frecuencias totales, quedándose
+     * con los n mejores de cada estadístico.
+     */
+    private static class RangeTask implements Callable<RangeResult> {
+        private final List<Terms> leafTerms;
+        private final BytesRef lower;
+        private final BytesRef upper;
+        private final List<Stat> stats;
+        private final int n;
+        private final long docCount;
+
+        RangeTask(List<Terms> leafTerms, BytesRef lower, BytesRef upper, List<Stat> stats, int n, long docCount) {
+            this.leafTerms = leafTerms;
+            this.lower = lower;
+            this.upper = upper;
+            this.stats = stats;
+            this.n = n;
+            this.docCount = docCount;
+        }
+
+        @Override
+        public RangeResult call() throws IOException {
+            PriorityQueue<LeafEnum> merge = new PriorityQueue<>(leafTerms.size(), (a, b) -> a.term.compareTo(b.term));
+            for (Terms terms : leafTerms) {
+                TermsEnum termsEnum = terms.iterator();
+                if (termsEnum.seekCeil(lower) != TermsEnum.SeekStatus.END && inRange(termsEnum.term())) {
+                    merge.add(new LeafEnum(termsEnum, termsEnum.term()));
+                }
+            }
+
+            List<PriorityQueue<TermCount>> tops = new ArrayList<>();
+            List<Comparator<TermCount>> comparators = new ArrayList<>();
+            for (Stat stat : stats) {
+                comparators.add(TermCount.worstFirst(stat));
+                tops.add(new PriorityQueue<>(n + 1, comparators.get(comparators.size() - 1)));
+            }
+            LeafEnum[] current = new LeafEnum[leafTerms.size()];
+            TermCount candidate = new TermCount();
+            long uniqueTerms = 0;
+            while (!merge.isEmpty()) {
+                //Se sacan todas las hojas posicionadas en el término más pequeño y se suman sus frecuencias
+                int numCurrent = 0;
+                current[numCurrent++] = merge.poll();
+                long df = current[0].termsEnum.docFreq();
+                long ttf = current[0].termsEnum.totalTermFreq();
+                while (!merge.isEmpty() && merge.peek().term.bytesEquals(current[0].term)) {
+                    current[numCurrent] = merge.poll();
+                    df += current[numCurrent].termsEnum.docFreq();
+                    ttf += current[numCurrent++].termsEnum.totalTermFreq();
+                }
+                uniqueTerms++;
+
+                //El candidato sólo copia el término si entra en algún top n; el TermCount expulsado se reutiliza
+                candidate.df = df;
+                candidate.ttf = ttf;
+                candidate.tfidf = ttf * (1 + Math.log((docCount + 1.0) / (df + 1.0)));
+                boolean copied = false;
+                for (int s = 0; s < tops.size(); s++) {
+                    PriorityQueue<TermCount> top = tops.get(s);
+                    if (top.size() < n || (n > 0 && betterThanWorst(top.peek(), candidate, stats.get(s), current[0].term))) {
+                        if (!copied) {
+                            candidate.term.copyBytes(current[0].term);
+                            copied = true;
+                        }
+                        TermCount term = top.size() < n ? new TermCount() : top.poll();
+                        term.term.copyBytes(candidate.term.get());
+                        term.df = df;
+                        term.ttf = ttf;
+                        term.tfidf = candidate.tfidf;
+                        top.add(term);
+                    }
+                }
+
+                for (int i = 0; i < numCurrent; i++) {
+                    BytesRef next = current[i].termsEnum.next();
+                    if (next != null && inRange(next)) {
+                        current[i].term = next;
+                        merge.add(current[i]);
+                    }
+                }
             }
+            return new RangeResult(tops, uniqueTerms);
         }
 
+        private static boolean betterThanWorst(TermCount worst, TermCount candidate, Stat stat, BytesRef term) {
+            double worstValue = worst.get(stat);
+            double value = candidate.get(stat);
+            return worstValue < value || (worstValue == value && worst.term.get().compareTo(term) > 0);
+        }
+
+        private boolean inRange(BytesRef term) {
+            return upper == null || term.compareTo(upper) < 0;
+        }
     }
-}
\ No newline at end of file
+}
@@ -11,13 +11,27 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 
 
 public class WebIndexer {
 
-    private static Analyzer analyzerFromName(String name){
+    // Clave de los datos del commit con el nombre del analyzer usado, para volver a analizar los campos sin term vectors
+    static final String ANALYZER_KEY = "analyzer";
+    // Los analyzers con este sufijo son ficheros de AnalyzerConfig
+    static final String CONFIG_SUFFIX = ".properties";
+
+    static boolean isAnalyzerConfig(String name) {
+        return name.endsWith(CONFIG_SUFFIX);
+    }
+
+    static Analyzer analyzerFromName(String name) throws IOException {
+        if (isAnalyzerConfig(name)) {
+            return AnalyzerConfig.load(name).build();
+        }
         Analyzer analyzer = null;
-        switch (name){
+        switch (name.toLowerCase()){
             case "standard":
                 analyzer = new StandardAnalyzer();
                 break;
@@ -37,11 +51,18 @@ public class WebIndexer {
 
         String usage =
                 "WebIndexer"
-                        + " [-index INDEX_PATH] [-docs DOCS_PATH] [-create] [-numThreads n] [-h] [-p] [-titleTermVectors] [-bodyTermVectors] [-analyzer Analyzer]\n"
+                        + " [-index INDEX_PATH] [-docs DOCS_PATH] [-create] [-numThreads n] [-h] [-p] [-titleTermVectors] [-bodyTermVectors] [-analyzer Analyzer|config.properties] [-keywords n] [-nrt port] [-host address] [-maxStaleness secs]\n"
                         + "[\"Indexa los documentos de DOCS_PATH en un índice ubicado en INDEX_PATH con el analyzer Analyzer.\n " +
                         "Para esto, usará una pool de n threads. Con la opción -h, cada thread informará de las urls analizadas. " +
                         "Con la opción -p, la aplicación informará de la creación del índice\n" +
-                        "Con bodyTermVectors y titleTermVectors, se almacenarán TermVectors para su respectivo campo";
+                        "Con bodyTermVectors y titleTermVectors, se almacenarán TermVectors para su respectivo campo\n" +
+                        "Con -analyzer config.properties, el analyzer se construye con AnalyzerConfig (p.ej. shingles en title y " +
+                        "stemming en body) y se guarda en el índice\n" +
+                        "Con -keywords n, se guardarán en el campo keywords los n términos del body con mayor tf-idf\n" +
+                        "Con -nrt port, se podrá buscar en el índice mientras se crea en http://localhost:port/search?q=..., " +
+                        "con resultados de como mucho maxStaleness segundos de antigüedad (5 por defecto). El servidor sólo atiende " +
+                        "conexiones locales salvo que se indique otra dirección con -host (0.0.0.0 para todas las interfaces); " +
+                        "no tiene autenticación";
 
         String supportedAnalyzers = "Los analyzers permitidos son: Standard, Spanish y English\n";
 
@@ -56,6 +77,10 @@ public class WebIndexer {
         boolean titleTermVectors = false;
         boolean bodyTermVectors = false;
         String analyzerName = "standard";
+        int numKeywords = 0;
+        int nrtPort = 0;
+        String nrtHost = null;
+        double maxStaleness = 5.0;
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -84,7 +109,19 @@ public class WebIndexer {
                     bodyTermVectors = true;
                     break;
                 case "-analyzer":
-                    analyzerName = args[++i].toLowerCase();
+                    analyzerName = args[++i];
+                    break;
+                case "-keywords":
+                    numKeywords = Integer.parseInt(args[++i]);
+                    break;
+                case "-nrt":
+                    nrtPort = Integer.parseInt(args[++i]);
+                    break;
+                case "-host":
+                    nrtHost = args[++i];
+                    break;
+                case "-maxStaleness":
+                    maxStaleness = Double.parseDouble(args[++i]);
                     break;
                 default:
                     throw new IllegalArgumentException("Parámetro no reconocido: " + args[i]);
@@ -127,7 +164,28 @@ public class WebIndexer {
 
             long startTime = System.currentTimeMillis();
             try(IndexWriter writer = new IndexWriter(indexDir, iwc)){
-                ThreadPool.createIndexThreads(urlPath, docDir, writer, threadInfo, nThreads, titleTermVectors, bodyTermVectors);
+                Keywords keywords = numKeywords > 0 ? new Keywords(numKeywords, analyzer) : null;
+                // El servidor NRT se cierra antes que el writer del que lee
+                NrtSearchServer nrtServer = nrtPort > 0
+                        ? new NrtSearchServer(writer, analyzer, nrtHost, nrtPort, maxStaleness, Math.min(0.1, maxStaleness)) : null;
+                if (nrtServer != null) {
+                    System.out.println("Búsqueda NRT durante la indexación en http://"
+                            + (nrtHost == null ? "localhost" : nrtHost) + ":" + nrtPort + "/search?q=...");
+                }
+                try {
+                    ThreadPool.createIndexThreads(urlPath, docDir, writer, threadInfo, nThreads, titleTermVectors, bodyTermVectors, keywords);
+                } finally {
+                    if (nrtServer != null) {
+                        nrtServer.close();
+                    }
+                }
+                Map<String, String> commitData = new HashMap<>();
+                commitData.put(ANALYZER_KEY, analyzerName);
+                if (isAnalyzerConfig(analyzerName)) {
+                    // La configuración entera, por si el fichero cambia o desaparece después de indexar
+                    commitData.putAll(AnalyzerConfig.load(analyzerName).commitData());
+                }
+                writer.setLiveCommitData(commitData.entrySet());
             }
             long endTime = System.currentTimeMillis();
             if(runtimeInfo){